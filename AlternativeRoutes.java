@@ -0,0 +1,98 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds a few meaningfully different routes between two intersections by the
+ * penalty method: after each shortest path search, every segment on the path
+ * found is made more expensive, so the next search is pushed onto other roads.
+ * A path found this way is kept as an alternative only if it isn't too much
+ * longer than the best route (MAX_STRETCH), and doesn't share too much of its
+ * length with any route already kept (MAX_OVERLAP).
+ *
+ * Each search stops as soon as it reaches the goal, and there are at most
+ * MAX_SEARCHES_PER_ROUTE per route asked for, so the whole lot costs a small
+ * multiple of one route search.
+ *
+ */
+public class AlternativeRoutes {
+	// how much more each segment of a found path costs in later searches
+	public static final double PENALTY = 1.5;
+	// alternatives can be at most this many times the cost of the best route
+	public static final double MAX_STRETCH = 1.4;
+	// and share at most this fraction of their length with any other route
+	public static final double MAX_OVERLAP = 0.6;
+	public static final int MAX_SEARCHES_PER_ROUTE = 3;
+
+	/**
+	 * Returns up to k routes from start to goal, best first, or an empty list
+	 * if the goal can't be reached.
+	 */
+	public static List<Route> find(Graph graph, Node start, Node goal, int k) {
+		return find(graph, start, goal, k, -1);
+	}
+
+	/**
+	 * Returns up to k routes from start to goal, fastest first when leaving at
+	 * the given time (minutes since midnight), or shortest first if it's -1.
+	 * Alternatives are then compared by their travel time at that departure.
+	 */
+	public static List<Route> find(Graph graph, Node start, Node goal, int k, double departure) {
+		TrafficOverlay costs = graph.overlay();
+		List<Route> routes = new ArrayList<>();
+		if (start == goal) {
+			routes.add(new Route(new ArrayList<Segment>(), start, costs));
+			return routes;
+		}
+
+		StrongComponents scc = graph.strongComponents();
+		if (scc.cannotReach(start, goal))
+			return routes;
+
+		Dijkstra dijkstra = new Dijkstra(graph);
+		SpeedProfiles profiles = graph.speedProfiles();
+		// penalty factor by segment ID, shared by both directions of a road
+		double[] penalty = new double[graph.segments.size()];
+		Arrays.fill(penalty, 1);
+		// segments into nodes that can't lead on to the goal are left out
+		int from = start.index, to = goal.index;
+		Dijkstra.Weight penalised = s -> scc.mayPassThrough(s.end.index, from, to)
+				? costs.cost(s) * penalty[s.segmentID] : Double.POSITIVE_INFINITY;
+		// by time of day, the penalty stretches the time spent on the segment
+		Dijkstra.TravelTime travel = profiles.travelTime(costs);
+		Dijkstra.TravelTime penalisedTravel = (s, time) -> scc.mayPassThrough(s.end.index, from, to)
+				? time + (travel.arrival(s, time) - time) * penalty[s.segmentID] : Double.POSITIVE_INFINITY;
+
+		// cost of each route kept, by length or travel time
+		List<Double> kept = new ArrayList<>();
+		for (int search = 0; search < k * MAX_SEARCHES_PER_ROUTE && routes.size() < k; search++) {
+			if (departure < 0)
+				dijkstra.run(start, goal, Double.POSITIVE_INFINITY, penalised);
+			else
+				dijkstra.run(start, goal, departure, penalisedTravel);
+			List<Segment> path = dijkstra.pathTo(goal);
+			if (path == null)
+				break;
+			Route route = new Route(path, start, costs);
+			for (Segment s : path)
+				penalty[s.segmentID] *= PENALTY;
+
+			double cost = departure < 0 ? route.cost : profiles.duration(route, departure, costs);
+			if (routes.isEmpty() || acceptable(route, cost, routes, kept.get(0))) {
+				routes.add(route);
+				kept.add(cost);
+			}
+		}
+		return routes;
+	}
+
+	private static boolean acceptable(Route route, double cost, List<Route> routes, double best) {
+		if (cost > best * MAX_STRETCH)
+			return false;
+		for (Route other : routes) {
+			if (route.sharedLength(other) > route.length * MAX_OVERLAP)
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,178 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The result of the critical intersection (articulation point) analysis: the
+ * set of articulation nodes, how many of them were found in each connected
+ * component of the graph, and the bridges (critical road segments).
+ *
+ * Running the analysis over the whole region is slow, so the result is written
+ * to a cache file next to the data files. The cache is keyed by a fingerprint
+ * of the input files (their sizes and modification times), so it is only
+ * reused while the data it was computed from is unchanged.
+ *
+ */
+public class ArticulationAnalysis {
+	public static final String CACHE_FILENAME = "articulation-points.cache";
+	// bump this whenever the layout of the cache file changes
+	private static final String CACHE_VERSION = "2";
+
+	public final Set<Node> nodes;
+	public final List<Integer> componentCounts;
+	public final List<Segment> bridges;
+
+	public ArticulationAnalysis(Set<Node> nodes, List<Integer> componentCounts,
+			List<Segment> bridges) {
+		this.nodes = nodes;
+		this.componentCounts = componentCounts;
+		this.bridges = bridges;
+	}
+
+	/**
+	 * Finds the articulation points and bridges of every connected component
+	 * of the graph.
+	 */
+	public static ArticulationAnalysis compute(Graph graph) {
+		Biconnectivity bc = graph.biconnectivity();
+		return new ArticulationAnalysis(bc.articulationPoints(),
+				bc.articulationCounts(), bc.bridges());
+	}
+
+	/**
+	 * Returns the cached analysis for the given data files if there is one and
+	 * it is still current, otherwise computes it and tries to cache it. Failing
+	 * to write the cache (eg. a read-only data directory) is not an error.
+	 */
+	public static ArticulationAnalysis loadOrCompute(Graph graph, File nodes,
+			File roads, File segments) {
+		File cache = new File(nodes.getAbsoluteFile().getParentFile(), CACHE_FILENAME);
+		String fingerprint = fingerprint(nodes, roads, segments);
+
+		ArticulationAnalysis analysis = read(cache, fingerprint, graph);
+		if (analysis == null) {
+			analysis = compute(graph);
+			write(cache, fingerprint, analysis);
+		}
+		return analysis;
+	}
+
+	/**
+	 * Describes the input files well enough to tell when any of them change.
+	 */
+	static String fingerprint(File... files) {
+		StringBuilder sb = new StringBuilder("v" + CACHE_VERSION + ";");
+		for (File f : files) {
+			sb.append(f.getName()).append(':').append(f.length()).append(':')
+					.append(f.lastModified()).append(';');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Reads a cache file: the fingerprint on the first line, the per-component
+	 * counts on the second, the bridge segment IDs on the third, then one
+	 * articulation node ID per line. Returns
+	 * null if the file is missing, stale, or refers to nodes we don't have.
+	 */
+	private static ArticulationAnalysis read(File cache, String fingerprint, Graph graph) {
+		if (!cache.isFile())
+			return null;
+
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(cache));
+			try {
+				if (!fingerprint.equals(br.readLine()))
+					return null;
+
+				List<Integer> counts = new ArrayList<Integer>();
+				for (int count : parseLine(br.readLine()))
+					counts.add(count);
+
+				Map<Integer, Segment> segments = new HashMap<Integer, Segment>();
+				for (Segment s : graph.segments)
+					segments.put(s.segmentID, s);
+				List<Segment> bridges = new ArrayList<Segment>();
+				for (int id : parseLine(br.readLine())) {
+					Segment s = segments.get(id);
+					if (s == null)
+						return null;
+					bridges.add(s);
+				}
+
+				String line;
+
+				Set<Node> artNodes = new HashSet<Node>();
+				while ((line = br.readLine()) != null) {
+					Node node = graph.node(Integer.parseInt(line));
+					if (node == null)
+						return null;
+					artNodes.add(node);
+				}
+				return new ArticulationAnalysis(artNodes, counts, bridges);
+			} finally {
+				br.close();
+			}
+		} catch (IOException | NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Splits a tab separated line of integers.
+	 */
+	private static List<Integer> parseLine(String line) throws IOException {
+		if (line == null)
+			throw new IOException("truncated cache file");
+		List<Integer> values = new ArrayList<Integer>();
+		for (String token : line.split("[\t]+")) {
+			if (!token.isEmpty())
+				values.add(Integer.parseInt(token));
+		}
+		return values;
+	}
+
+	/**
+	 * Writes the cache to a temporary file first and then moves it into place,
+	 * so an interrupted write never leaves a truncated cache behind.
+	 */
+	private static void write(File cache, String fingerprint, ArticulationAnalysis analysis) {
+		File tmp = new File(cache.getPath() + ".tmp");
+		try {
+			BufferedWriter bw = new BufferedWriter(new FileWriter(tmp));
+			try {
+				bw.write(fingerprint);
+				bw.newLine();
+				for (int count : analysis.componentCounts) {
+					bw.write(count + "\t");
+				}
+				bw.newLine();
+				for (Segment s : analysis.bridges) {
+					bw.write(s.segmentID + "\t");
+				}
+				bw.newLine();
+				for (Node n : analysis.nodes) {
+					bw.write(Integer.toString(n.nodeID));
+					bw.newLine();
+				}
+			} finally {
+				bw.close();
+			}
+			cache.delete();
+			if (!tmp.renameTo(cache))
+				tmp.delete();
+		} catch (IOException e) {
+			tmp.delete();
+			// the cache is only an optimisation, so carry on without it.
+		}
+	}
+}
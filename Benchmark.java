@@ -0,0 +1,282 @@
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntSupplier;
+
+/**
+ * Times the hot paths of the program on a data set, so changes can be checked
+ * for regressions: loading the files, A* between fixed random pairs of
+ * intersections, finding the articulation points, road name lookups for every
+ * prefix as it's typed, finding the intersection nearest a click, and drawing
+ * the whole map into an off-screen image.
+ *
+ * The work for each benchmark is set up by operations(), which the JMH
+ * benchmarks in src/jmh/java share (see the jmh profile in pom.xml), so both
+ * time exactly the same thing. This class also runs them itself, without a
+ * build: each benchmark is run for WARMUP untimed iterations to let the JIT
+ * settle, then ITERATIONS timed ones, and is reported as time per operation.
+ * Random choices all come from a fixed seed, so runs on the same data do the
+ * same work. The results are written as JSON:
+ *
+ * java Benchmark data-directory [output-file] [seed]
+ *
+ */
+public class Benchmark {
+	public static final long SEED = 42;
+	public static final int WARMUP = 3, ITERATIONS = 5;
+	public static final int OD_PAIRS = 100, TYPED_PREFIXES = 500, CLICKS = 1000;
+	public static final int IMAGE_WIDTH = 1000, IMAGE_HEIGHT = 800;
+
+	// results of the timed code end up here, so the JIT can't drop the work
+	static long sink;
+
+	/**
+	 * The timings of one benchmark, in microseconds per operation.
+	 */
+	static class Result {
+		final String name;
+		final int ops;
+		final double[] samples = new double[ITERATIONS];
+
+		Result(String name, int ops) {
+			this.name = name;
+			this.ops = ops;
+		}
+
+		double mean() {
+			double sum = 0;
+			for (double s : samples)
+				sum += s;
+			return sum / samples.length;
+		}
+
+		double stddev() {
+			double mean = mean(), sum = 0;
+			for (double s : samples)
+				sum += (s - mean) * (s - mean);
+			return Math.sqrt(sum / Math.max(1, samples.length - 1));
+		}
+
+		double min() {
+			double min = Double.MAX_VALUE;
+			for (double s : samples)
+				min = Math.min(min, s);
+			return min;
+		}
+
+		double max() {
+			double max = 0;
+			for (double s : samples)
+				max = Math.max(max, s);
+			return max;
+		}
+	}
+
+	/**
+	 * Sets up every benchmark on the data in the directory, and returns one
+	 * operation of each by name, in the order they are reported. Each call
+	 * of an operation does the next query of its kind (eg. A* between the
+	 * next of the OD_PAIRS), going round again after the last, and returns
+	 * something that depends on the answer so the work can't be dropped.
+	 *
+	 * Only standard types go in and out, because JMH benchmarks have to be
+	 * in a package and can't name the classes here.
+	 */
+	public static Map<String, IntSupplier> operations(File dir, long seed) {
+		System.setProperty("java.awt.headless", "true");
+		final File nodesFile = new File(dir, GUI.NODES_FILENAME);
+		final File roadsFile = new File(dir, GUI.ROADS_FILENAME);
+		final File segsFile = new File(dir, GUI.SEGS_FILENAME);
+		Map<String, IntSupplier> operations = new LinkedHashMap<>();
+
+		operations.put("load", () -> new Graph(nodesFile, roadsFile, segsFile, null).segments.size());
+
+		final Graph graph = new Graph(nodesFile, roadsFile, segsFile, null);
+		final Node[] nodes = graph.nodeArray;
+		Random random = new Random(seed);
+
+		final Node[][] pairs = new Node[OD_PAIRS][];
+		for (int i = 0; i < pairs.length; i++)
+			pairs[i] = new Node[] { nodes[random.nextInt(nodes.length)], nodes[random.nextInt(nodes.length)] };
+		operations.put("astar", new Cycle(pairs.length) {
+			int run(int i) {
+				graph.AstarSearch(pairs[i][0], pairs[i][1]);
+				return graph.printPath(pairs[i][1]).size();
+			}
+		});
+		// the same routes costed by length alone, as before the traffic overlay
+		operations.put("astar-lengths", new Cycle(pairs.length) {
+			int run(int i) {
+				graph.AstarSearch(pairs[i][0], pairs[i][1], null);
+				return graph.printPath(pairs[i][1]).size();
+			}
+		});
+
+		operations.put("articulation", () -> new Biconnectivity(graph).articulationPoints().size());
+
+		// every prefix of random road names, as they'd be typed
+		final Trie trie = new Trie(graph.roads.values());
+		List<Road> roads = new ArrayList<>(graph.roads.values());
+		final List<String> prefixes = new ArrayList<>();
+		while (prefixes.size() < TYPED_PREFIXES && !roads.isEmpty()) {
+			String name = roads.get(random.nextInt(roads.size())).name;
+			for (int k = 1; k <= name.length() && prefixes.size() < TYPED_PREFIXES; k++)
+				prefixes.add(name.substring(0, k));
+		}
+		operations.put("trie-get", new Cycle(prefixes.size()) {
+			int run(int i) {
+				return trie.get(prefixes.get(i)).size();
+			}
+		});
+
+		// clicks anywhere in the area the nodes cover
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for (Node n : nodes) {
+			minX = Math.min(minX, n.location.x);
+			minY = Math.min(minY, n.location.y);
+			maxX = Math.max(maxX, n.location.x);
+			maxY = Math.max(maxY, n.location.y);
+		}
+		final Location[] clicks = new Location[CLICKS];
+		for (int i = 0; i < clicks.length; i++)
+			clicks[i] = new Location(minX + random.nextDouble() * (maxX - minX),
+					minY + random.nextDouble() * (maxY - minY));
+		operations.put("nearest-node", new Cycle(clicks.length) {
+			int run(int i) {
+				return graph.closestNode(clicks[i]).nodeID;
+			}
+		});
+
+		// the same view the map opens with
+		final BufferedImage image = new BufferedImage(IMAGE_WIDTH, IMAGE_HEIGHT, BufferedImage.TYPE_INT_RGB);
+		final Dimension screen = new Dimension(IMAGE_WIDTH, IMAGE_HEIGHT);
+		operations.put("draw", () -> {
+			Graphics2D g = image.createGraphics();
+			graph.draw(g, screen, new Location(-250, 250), 1);
+			g.dispose();
+			return image.getRGB(IMAGE_WIDTH / 2, IMAGE_HEIGHT / 2);
+		});
+		return operations;
+	}
+
+	/**
+	 * An operation that goes round a fixed list of queries, one per call.
+	 */
+	abstract static class Cycle implements IntSupplier {
+		final int length;
+		private int next;
+
+		Cycle(int length) {
+			this.length = length;
+		}
+
+		abstract int run(int i);
+
+		public int getAsInt() {
+			if (length == 0)
+				return 0;
+			int i = next;
+			next = (next + 1) % length;
+			return run(i);
+		}
+	}
+
+	/**
+	 * Returns a directory holding a network of the given size made by
+	 * NetworkGenerator, writing it into the temporary directory the first
+	 * time, so benchmarks can run without any real data.
+	 */
+	public static File generated(int nodes, long seed) throws IOException {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "roadmap-" + nodes + "-" + seed);
+		if (new File(dir, GUI.SEGS_FILENAME).isFile())
+			return dir;
+		// write it somewhere else first, so a half written network is never used
+		File tmp = new File(dir.getPath() + ".tmp" + System.nanoTime());
+		new NetworkGenerator(nodes, seed).write(tmp);
+		if (!tmp.renameTo(dir) && !new File(dir, GUI.SEGS_FILENAME).isFile())
+			throw new IOException("couldn't move the generated network to " + dir);
+		return dir;
+	}
+
+	/**
+	 * Times an operation over its whole cycle of queries, or once if it
+	 * doesn't have one.
+	 */
+	static Result measure(String name, IntSupplier operation) {
+		int ops = operation instanceof Cycle ? Math.max(1, ((Cycle) operation).length) : 1;
+		for (int i = 0; i < WARMUP; i++)
+			for (int k = 0; k < ops; k++)
+				sink += operation.getAsInt();
+		Result result = new Result(name, ops);
+		for (int i = 0; i < ITERATIONS; i++) {
+			long begin = System.nanoTime();
+			for (int k = 0; k < ops; k++)
+				sink += operation.getAsInt();
+			long time = System.nanoTime() - begin;
+			result.samples[i] = time / 1e3 / ops;
+		}
+		System.err.printf(Locale.ROOT, "%-12s %12.2f us/op  (+- %.2f, %d ops)%n", name, result.mean(),
+				result.stddev(), result.ops);
+		return result;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 3) {
+			System.err.println("usage: java Benchmark data-directory [output-file] [seed]");
+			return;
+		}
+		final File dir = new File(args[0]);
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : SEED;
+
+		List<Result> results = new ArrayList<>();
+		for (Map.Entry<String, IntSupplier> operation : operations(dir, seed).entrySet())
+			results.add(measure(operation.getKey(), operation.getValue()));
+
+		Graph graph = new Graph(new File(dir, GUI.NODES_FILENAME), new File(dir, GUI.ROADS_FILENAME),
+				new File(dir, GUI.SEGS_FILENAME), null);
+		String json = toJson(dir, seed, graph, results);
+		if (args.length > 1) {
+			Writer out = new FileWriter(args[1]);
+			try {
+				out.write(json);
+			} finally {
+				out.close();
+			}
+		} else {
+			System.out.print(json);
+		}
+	}
+
+	private static String toJson(File dir, long seed, Graph graph, List<Result> results) {
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append(String.format(Locale.ROOT, "  \"data\": \"%s\",\n", dir.getPath().replace("\\", "\\\\").replace("\"", "\\\"")));
+		json.append(String.format(Locale.ROOT, "  \"seed\": %d,\n", seed));
+		json.append(String.format(Locale.ROOT, "  \"nodes\": %d,\n  \"segments\": %d,\n", graph.nodes.size(), graph.segments.size()));
+		json.append(String.format(Locale.ROOT, "  \"java\": \"%s\",\n", System.getProperty("java.version")));
+		json.append(String.format(Locale.ROOT, "  \"warmup\": %d,\n  \"iterations\": %d,\n", WARMUP, ITERATIONS));
+		json.append("  \"benchmarks\": [\n");
+		for (int i = 0; i < results.size(); i++) {
+			Result r = results.get(i);
+			json.append(String.format(Locale.ROOT,
+					"    {\"name\": \"%s\", \"unit\": \"us/op\", \"ops\": %d, \"mean\": %.3f, \"stddev\": %.3f, \"min\": %.3f, \"max\": %.3f, \"samples\": [",
+					r.name, r.ops, r.mean(), r.stddev(), r.min(), r.max()));
+			for (int k = 0; k < r.samples.length; k++)
+				json.append(k == 0 ? "" : ", ").append(String.format(Locale.ROOT, "%.3f", r.samples[k]));
+			json.append(i + 1 < results.size() ? "]},\n" : "]}\n");
+		}
+		json.append("  ]\n}\n");
+		return json.toString();
+	}
+}
@@ -0,0 +1,483 @@
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * How many shortest paths go through each intersection (its betweenness
+ * centrality), for finding the intersections the most traffic depends on.
+ * Articulation points only say where the network falls apart; this says
+ * where it is busiest.
+ *
+ * The exact answer needs a search from every node, so it is estimated with
+ * Brandes' algorithm from a random sample of source nodes instead: a
+ * Dijkstra search from each source counts the shortest paths to every node,
+ * then the nodes are walked back in the reverse order they were settled to
+ * add up how many of those paths pass through each one. Scaling the sums by
+ * the number of nodes over the number of sources gives an unbiased estimate,
+ * whose error shrinks with the square root of the number of sources. More
+ * sources is more accurate and takes proportionally longer, so both a number
+ * of sources and a time budget can be given, and it stops at whichever comes
+ * first.
+ *
+ * The sources are shared out between a search per core, each with its own
+ * arrays, and their sums are added up at the end. Distances are the lengths
+ * of the roads for cars, ignoring the traffic overlay, so the result only
+ * depends on the data and is cached next to it like the articulation points.
+ *
+ * java Betweenness data-directory [sources] [budget-ms]
+ *
+ */
+public class Betweenness {
+	public static final String CACHE_FILENAME = "betweenness.cache";
+	public static final int DEFAULT_SOURCES = 500;
+	public static final long DEFAULT_BUDGET = 30000;	// milliseconds
+	// the sources are always picked the same way, so the cache can be checked
+	private static final long SEED = 1;
+	// share of the nodes with any paths through them shown on the heat map
+	private static final double HOT_SHARE = 0.05;
+	// paths within this many km of each other are the same length. lengths
+	// are given to the 10 cm, so equally short paths often add up to sums
+	// that differ in the last bit.
+	private static final double TIE = 1e-9;
+
+	private final Node[] nodes;
+	// by node index: the estimated number of shortest paths through it
+	private final double[] score;
+	// the estimated number of pairs of nodes with a path between them
+	public final double pairs;
+	public final int sources;
+	public final long millis;
+	// the hottest nodes, coolest first so the hottest are drawn on top
+	private final int[] hot;
+	private final double max;
+
+	private Betweenness(Graph graph, double[] score, double pairs, int sources, long millis) {
+		this.nodes = graph.nodeArray;
+		this.score = score;
+		this.pairs = pairs;
+		this.sources = sources;
+		this.millis = millis;
+
+		int busy = 0;
+		for (double c : score)
+			if (c > 0)
+				busy++;
+		Integer[] order = new Integer[score.length];
+		for (int v = 0; v < order.length; v++)
+			order[v] = v;
+		Arrays.sort(order, (a, b) -> Double.compare(score[b], score[a]));
+		hot = new int[(int) Math.ceil(busy * HOT_SHARE)];
+		for (int i = 0; i < hot.length; i++)
+			hot[i] = order[hot.length - 1 - i];
+		max = score.length == 0 ? 0 : score[order[0]];
+	}
+
+	/**
+	 * Estimates the centrality from up to the given number of sources,
+	 * stopping early once about budget milliseconds have gone. With at least
+	 * as many sources as nodes the answer is exact.
+	 */
+	public static Betweenness compute(Graph graph, int sources, long budget) {
+		long begin = System.currentTimeMillis();
+		int n = graph.nodeArray.length;
+		Network network = new Network(graph);
+
+		// a random sample of the nodes, without repeats
+		int[] picked = new int[n];
+		for (int v = 0; v < n; v++)
+			picked[v] = v;
+		Random random = new Random(SEED);
+		int k = Math.min(sources, n);
+		for (int i = 0; i < k; i++) {
+			int j = i + random.nextInt(n - i);
+			int t = picked[i];
+			picked[i] = picked[j];
+			picked[j] = t;
+		}
+
+		long deadline = begin + budget;
+		AtomicInteger next = new AtomicInteger();
+		int workers = Math.max(1, Runtime.getRuntime().availableProcessors());
+		List<Search> searches = IntStream.range(0, workers).parallel()
+				.mapToObj(w -> new Search(network).run(picked, k, next, deadline))
+				.collect(Collectors.toList());
+
+		double[] score = new double[n];
+		double pairs = 0;
+		int done = 0;
+		for (Search s : searches) {
+			for (int v = 0; v < n; v++)
+				score[v] += s.score[v];
+			pairs += s.pairs;
+			done += s.sources;
+		}
+		// each source stands for n / done of them
+		double scale = done == 0 ? 0 : (double) n / done;
+		for (int v = 0; v < n; v++)
+			score[v] *= scale;
+		return new Betweenness(graph, score, pairs * scale, done, System.currentTimeMillis() - begin);
+	}
+
+	/**
+	 * Returns the cached centrality for the given data files if it is still
+	 * current and was worked out from at least as many sources as asked for,
+	 * otherwise computes it. If the run is cut short by the budget, whichever
+	 * of it and the cached one got through more sources is kept and returned.
+	 */
+	public static Betweenness loadOrCompute(Graph graph, File nodes, File roads, File segments, int sources,
+			long budget) {
+		File cache = new File(nodes.getAbsoluteFile().getParentFile(), CACHE_FILENAME);
+		String fingerprint = ArticulationAnalysis.fingerprint(nodes, roads, segments);
+
+		Betweenness cached = read(cache, fingerprint, graph);
+		if (cached != null && cached.sources >= Math.min(sources, graph.nodeArray.length))
+			return cached;
+		Betweenness b = compute(graph, sources, budget);
+		if (cached != null && cached.sources >= b.sources)
+			return cached;	// cut short again, so the cached one is still better
+		if (b.sources > 0)
+			write(cache, fingerprint, b);
+		return b;
+	}
+
+	/**
+	 * Returns the estimated number of shortest paths through the node.
+	 */
+	public double score(Node node) {
+		return score[node.index];
+	}
+
+	/**
+	 * Returns the share of all the shortest paths that go through the node.
+	 */
+	public double share(Node node) {
+		return pairs == 0 ? 0 : score[node.index] / pairs;
+	}
+
+	/**
+	 * Returns the k nodes with the most shortest paths through them, busiest
+	 * first.
+	 */
+	public List<Node> top(int k) {
+		return IntStream.range(0, hot.length).map(i -> hot[hot.length - 1 - i]).limit(k)
+				.mapToObj(v -> nodes[v]).collect(Collectors.toList());
+	}
+
+	/**
+	 * Draws the busiest nodes as a heat map, from yellow to red and bigger
+	 * the busier they are. The colour follows the log of the score, since a
+	 * few main roads carry far more than everything else.
+	 */
+	public void draw(Graphics2D g, Dimension screen, Location origin, double scale) {
+		int base = (int) (Mapper.NODE_GRADIENT * Math.log(scale) + Mapper.NODE_INTERCEPT);
+		double low = hot.length == 0 ? 0 : Math.log1p(score[hot[0]]), high = Math.log1p(max);
+		for (int v : hot) {
+			Point p = nodes[v].location.asPoint(origin, scale);
+			if (p.x < 0 || p.x > screen.width || p.y < 0 || p.y > screen.height)
+				continue;
+			double heat = high > low ? (Math.log1p(score[v]) - low) / (high - low) : 1;
+			g.setColor(new Color(255, (int) (220 * (1 - heat)), 0, 160));
+			int size = (int) Math.max(3, base * (1 + 2 * heat));
+			g.fillOval(p.x - size / 2, p.y - size / 2, size, size);
+		}
+	}
+
+	public String toString() {
+		return String.format("betweenness from %d sources in %d ms", sources, millis);
+	}
+
+	/**
+	 * The graph as primitive arrays, shared read only by the searches. Only
+	 * roads for cars are included.
+	 */
+	private static class Network {
+		final int n;
+		// segments out of v are out[outStart[v]] .. out[outStart[v + 1] - 1],
+		// and segments into v likewise with in and inStart
+		final int[] outStart, out, inStart, in;
+		final double[] outLength, inLength;
+
+		Network(Graph graph) {
+			n = graph.nodeArray.length;
+			outStart = new int[n + 1];
+			inStart = new int[n + 1];
+			// graph.segments doesn't have the reverse segments of two way
+			// roads, so go by the nodes' out neighbours
+			for (Node node : graph.nodeArray) {
+				for (Segment s : node.outNeighbours) {
+					if (s.road.notForCar == 1)
+						continue;
+					outStart[s.start.index + 1]++;
+					inStart[s.end.index + 1]++;
+				}
+			}
+			for (int v = 0; v < n; v++) {
+				outStart[v + 1] += outStart[v];
+				inStart[v + 1] += inStart[v];
+			}
+			out = new int[outStart[n]];
+			in = new int[inStart[n]];
+			outLength = new double[out.length];
+			inLength = new double[in.length];
+			int[] outAt = Arrays.copyOf(outStart, n), inAt = Arrays.copyOf(inStart, n);
+			for (Node node : graph.nodeArray) {
+				for (Segment s : node.outNeighbours) {
+					if (s.road.notForCar == 1)
+						continue;
+					int u = s.start.index, v = s.end.index;
+					out[outAt[u]] = v;
+					outLength[outAt[u]++] = s.length;
+					in[inAt[v]] = u;
+					inLength[inAt[v]++] = s.length;
+				}
+			}
+		}
+	}
+
+	/**
+	 * One thread's share of the sources, with its own arrays and sums.
+	 */
+	private static class Search {
+		private final Network net;
+		private final double[] dist, paths, dependency;
+		// nodes in the order they were settled, which is also every node
+		// the current search touched
+		private final int[] settled;
+		// binary heap of node indices ordered by dist, and where each node is
+		// in it (-1 if not)
+		private final int[] heap, pos;
+		private int size;
+
+		final double[] score;
+		double pairs;
+		int sources;
+
+		Search(Network net) {
+			this.net = net;
+			int n = net.n;
+			dist = new double[n];
+			paths = new double[n];
+			dependency = new double[n];
+			settled = new int[n];
+			heap = new int[n];
+			pos = new int[n];
+			score = new double[n];
+			Arrays.fill(dist, Double.POSITIVE_INFINITY);
+			Arrays.fill(pos, -1);
+		}
+
+		Search run(int[] picked, int k, AtomicInteger next, long deadline) {
+			int i;
+			while (System.currentTimeMillis() < deadline && (i = next.getAndIncrement()) < k) {
+				accumulate(picked[i]);
+				sources++;
+			}
+			return this;
+		}
+
+		/**
+		 * Adds the shortest paths from source s to the sums.
+		 */
+		private void accumulate(int s) {
+			Metrics.Query q = Metrics.ENABLED ? Metrics.start("betweenness") : null;
+			long relaxed = 0;
+
+			// forward: distances, and the number of shortest paths to each node
+			dist[s] = 0;
+			paths[s] = 1;
+			push(s);
+			int count = 0;
+			while (size > 0) {
+				int v = pop();
+				settled[count++] = v;
+				for (int e = net.outStart[v]; e < net.outStart[v + 1]; e++) {
+					int w = net.out[e];
+					double d = dist[v] + net.outLength[e];
+					relaxed++;
+					if (Math.abs(d - dist[w]) <= TIE) {
+						paths[w] += paths[v];
+					} else if (d < dist[w]) {
+						dist[w] = d;
+						paths[w] = paths[v];
+						if (pos[w] < 0)
+							push(w);
+						else
+							siftUp(pos[w]);
+					}
+				}
+			}
+
+			// backward: a node's dependency is the share of the paths to the
+			// nodes after it that go through it. the predecessors of w on
+			// shortest paths are the segments into it that add up exactly.
+			for (int j = count - 1; j > 0; j--) {
+				int w = settled[j];
+				double share = (1 + dependency[w]) / paths[w];
+				for (int e = net.inStart[w]; e < net.inStart[w + 1]; e++) {
+					int v = net.in[e];
+					if (Math.abs(dist[v] + net.inLength[e] - dist[w]) <= TIE)
+						dependency[v] += paths[v] * share;
+				}
+				score[w] += dependency[w];
+			}
+			pairs += count - 1;
+
+			// put back only what this search touched
+			for (int j = 0; j < count; j++) {
+				int v = settled[j];
+				dist[v] = Double.POSITIVE_INFINITY;
+				paths[v] = 0;
+				dependency[v] = 0;
+			}
+			if (Metrics.ENABLED)
+				q.finish(count, relaxed, 2L * count);
+		}
+
+		private void push(int v) {
+			heap[size] = v;
+			pos[v] = size++;
+			siftUp(pos[v]);
+		}
+
+		private int pop() {
+			int top = heap[0];
+			pos[top] = -1;
+			size--;
+			if (size > 0) {
+				heap[0] = heap[size];
+				pos[heap[0]] = 0;
+				siftDown(0);
+			}
+			return top;
+		}
+
+		private void siftUp(int i) {
+			int v = heap[i];
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (dist[heap[parent]] <= dist[v])
+					break;
+				heap[i] = heap[parent];
+				pos[heap[i]] = i;
+				i = parent;
+			}
+			heap[i] = v;
+			pos[v] = i;
+		}
+
+		private void siftDown(int i) {
+			int v = heap[i];
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && dist[heap[child + 1]] < dist[heap[child]])
+					child++;
+				if (dist[heap[child]] >= dist[v])
+					break;
+				heap[i] = heap[child];
+				pos[heap[i]] = i;
+				i = child;
+			}
+			heap[i] = v;
+			pos[v] = i;
+		}
+	}
+
+	/**
+	 * Reads a cache file: the fingerprint on the first line, the number of
+	 * sources, pairs and time taken on the second, then a node ID and score
+	 * per line for every node with any paths through it. Returns null if the
+	 * file is missing, stale, or refers to nodes we don't have.
+	 */
+	private static Betweenness read(File cache, String fingerprint, Graph graph) {
+		if (!cache.isFile())
+			return null;
+
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(cache));
+			try {
+				if (!fingerprint.equals(br.readLine()))
+					return null;
+				String line = br.readLine();
+				if (line == null)
+					return null;
+				String[] header = line.split("\t");
+				double[] score = new double[graph.nodeArray.length];
+				while ((line = br.readLine()) != null) {
+					String[] tokens = line.split("\t");
+					Node node = graph.node(Integer.parseInt(tokens[0]));
+					if (node == null)
+						return null;
+					score[node.index] = Double.parseDouble(tokens[1]);
+				}
+				return new Betweenness(graph, score, Double.parseDouble(header[1]), Integer.parseInt(header[0]),
+						Long.parseLong(header[2]));
+			} finally {
+				br.close();
+			}
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the cache to a temporary file and moves it into place, as for
+	 * the articulation points. Failing to write it is not an error.
+	 */
+	private static void write(File cache, String fingerprint, Betweenness b) {
+		File tmp = new File(cache.getPath() + ".tmp");
+		try {
+			BufferedWriter bw = new BufferedWriter(new FileWriter(tmp));
+			try {
+				bw.write(fingerprint);
+				bw.newLine();
+				bw.write(b.sources + "\t" + b.pairs + "\t" + b.millis);
+				bw.newLine();
+				for (int v = 0; v < b.score.length; v++) {
+					if (b.score[v] > 0) {
+						bw.write(b.nodes[v].nodeID + "\t" + b.score[v]);
+						bw.newLine();
+					}
+				}
+			} finally {
+				bw.close();
+			}
+			cache.delete();
+			if (!tmp.renameTo(cache))
+				tmp.delete();
+		} catch (IOException e) {
+			tmp.delete();
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 3) {
+			System.err.println("usage: java Betweenness data-directory [sources] [budget-ms]");
+			return;
+		}
+		File dir = new File(args[0]);
+		Graph graph = new Graph(new File(dir, GUI.NODES_FILENAME), new File(dir, GUI.ROADS_FILENAME),
+				new File(dir, GUI.SEGS_FILENAME), null);
+		int sources = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SOURCES;
+		long budget = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_BUDGET;
+
+		Betweenness b = compute(graph, sources, budget);
+		System.out.println(b);
+		for (Node node : b.top(10))
+			System.out.printf("%8d  %.2f%% of shortest paths%n", node.nodeID, 100 * b.share(node));
+	}
+}
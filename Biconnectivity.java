@@ -0,0 +1,629 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds the critical parts of the road network in a single linear-time pass:
+ * the articulation points (intersections whose closure disconnects the map),
+ * the bridges (road segments whose closure disconnects the map), the
+ * biconnected components (blocks) that the segments fall into, and the
+ * 2-edge-connected components that the nodes fall into.
+ *
+ * Roads are treated as undirected here -- a one way road still lets emergency
+ * services through. The whole thing is an iterative version of the
+ * Hopcroft-Tarjan search working on primitive arrays, so it doesn't recurse
+ * and doesn't touch the fields on Node that A* uses.
+ *
+ * Nodes and segments can be closed (eg. for an incident) and the results are
+ * kept up to date incrementally. The blocks and the articulation points
+ * between them form the block-cut tree, and closing something only changes
+ * the blocks it is in: those are split up again on their own, and a node is
+ * an articulation point exactly when it belongs to more than one block.
+ * Reopening is rare, so it just runs the whole search again.
+ *
+ */
+public class Biconnectivity {
+	final Node[] nodes;			// by Node.index
+	final Segment[] segments;	// by Segment.segmentID
+	final int[] edgeFrom, edgeTo;	// node indices at each end of each segment
+
+	// undirected adjacency in compressed form: the segments touching node v
+	// are adjEdge[adjStart[v]] .. adjEdge[adjStart[v + 1] - 1]
+	final int[] adjStart, adjEdge;
+
+	// closures
+	final boolean[] closedNode;		// by node index
+	final boolean[] closedEdge;		// by segment ID
+
+	// results
+	final boolean[] articulation;	// by node index
+	final boolean[] bridge;			// by segment ID
+	final int[] edgeBlock;			// block of each segment, -1 for self loops and closed segments
+	final int[] twoEdgeComponent;	// by node index
+	final int[] component;			// connected component, by node index
+	int blockCount, twoEdgeComponentCount, componentCount;
+
+	// the segments of each block, null once a block has been split up, and how
+	// many blocks each node is in
+	List<int[]> blockEdges;
+	final int[] nodeBlocks;
+	// set when a closure might have split a 2-edge-connected component
+	boolean twoEdgeStale;
+
+	// scratch space for splitting blocks, indexed by node
+	private final int[] local, mark;
+	private int stamp;
+
+	public Biconnectivity(Graph graph) {
+		nodes = new Node[graph.nodes.size()];
+		for (Node n : graph.nodes.values())
+			nodes[n.index] = n;
+
+		int maxID = -1;
+		for (Segment s : graph.segments)
+			maxID = Math.max(maxID, s.segmentID);
+		segments = new Segment[maxID + 1];
+		for (Segment s : graph.segments)
+			segments[s.segmentID] = s;
+
+		int n = nodes.length, m = segments.length;
+		edgeFrom = new int[m];
+		edgeTo = new int[m];
+		adjStart = new int[n + 1];
+		for (int e = 0; e < m; e++) {
+			if (segments[e] == null) {
+				edgeFrom[e] = edgeTo[e] = -1;
+				continue;
+			}
+			edgeFrom[e] = segments[e].start.index;
+			edgeTo[e] = segments[e].end.index;
+			adjStart[edgeFrom[e] + 1]++;
+			adjStart[edgeTo[e] + 1]++;
+		}
+		for (int v = 0; v < n; v++)
+			adjStart[v + 1] += adjStart[v];
+		adjEdge = new int[adjStart[n]];
+		int[] fill = adjStart.clone();
+		for (int e = 0; e < m; e++) {
+			if (edgeFrom[e] < 0)
+				continue;
+			adjEdge[fill[edgeFrom[e]]++] = e;
+			adjEdge[fill[edgeTo[e]]++] = e;
+		}
+
+		closedNode = new boolean[n];
+		closedEdge = new boolean[m];
+		articulation = new boolean[n];
+		bridge = new boolean[m];
+		edgeBlock = new int[m];
+		twoEdgeComponent = new int[n];
+		component = new int[n];
+		nodeBlocks = new int[n];
+		local = new int[n];
+		mark = new int[n];
+		Arrays.fill(local, -1);
+		search();
+	}
+
+	/**
+	 * Returns the node at the other end of segment e from node v.
+	 */
+	int other(int e, int v) {
+		return edgeFrom[e] == v ? edgeTo[e] : edgeFrom[e];
+	}
+
+	/**
+	 * Returns true if segment e can't be used, either because it is closed or
+	 * because one of its ends is.
+	 */
+	boolean isClosed(int e) {
+		return edgeFrom[e] < 0 || closedEdge[e] || closedNode[edgeFrom[e]] || closedNode[edgeTo[e]];
+	}
+
+	private void search() {
+		int n = nodes.length, m = segments.length;
+		int[] disc = new int[n], low = new int[n], parentEdge = new int[n], next = new int[n];
+		int[] dfsStack = new int[n], nodeStack = new int[n], edgeStack = new int[m];
+		int time = 0;
+		// segments looked at, only counted when metrics are switched on
+		Metrics.Query query = Metrics.ENABLED ? Metrics.start("articulation") : null;
+		long relaxed = 0;
+
+		Arrays.fill(disc, -1);
+		Arrays.fill(edgeBlock, -1);
+		Arrays.fill(articulation, false);
+		Arrays.fill(bridge, false);
+		blockCount = twoEdgeComponentCount = componentCount = 0;
+		twoEdgeStale = false;
+
+		for (int root = 0; root < n; root++) {
+			if (disc[root] >= 0)
+				continue;
+
+			int dfsTop = 0, nodeTop = 0, edgeTop = 0, rootChildren = 0;
+			disc[root] = low[root] = time++;
+			component[root] = componentCount;
+			parentEdge[root] = -1;
+			next[root] = adjStart[root];
+			dfsStack[dfsTop++] = root;
+			nodeStack[nodeTop++] = root;
+
+			while (dfsTop > 0) {
+				int v = dfsStack[dfsTop - 1];
+
+				if (next[v] < adjStart[v + 1]) {
+					// look at the next segment out of v
+					int e = adjEdge[next[v]++];
+					if (e == parentEdge[v] || isClosed(e))
+						continue;
+					int w = other(e, v);
+					if (Metrics.ENABLED)
+						relaxed++;
+
+					if (disc[w] < 0) {		// tree edge, go down
+						edgeStack[edgeTop++] = e;
+						parentEdge[w] = e;
+						disc[w] = low[w] = time++;
+						component[w] = componentCount;
+						next[w] = adjStart[w];
+						dfsStack[dfsTop++] = w;
+						nodeStack[nodeTop++] = w;
+						if (v == root)
+							rootChildren++;
+					} else if (disc[w] < disc[v]) {		// back edge, reach back up
+						edgeStack[edgeTop++] = e;
+						low[v] = Math.min(low[v], disc[w]);
+					}
+					continue;
+				}
+
+				// last visit of v: report it to its parent
+				dfsTop--;
+				if (v == root)
+					break;
+				int e = parentEdge[v];
+				int p = other(e, v);
+				low[p] = Math.min(low[p], low[v]);
+
+				if (low[v] >= disc[p]) {
+					// p separates v's subtree from the rest, so the segments
+					// above e on the stack form a block
+					if (p != root)
+						articulation[p] = true;
+					int f;
+					do {
+						f = edgeStack[--edgeTop];
+						edgeBlock[f] = blockCount;
+					} while (f != e);
+					blockCount++;
+				}
+
+				if (low[v] > disc[p]) {
+					// nothing in v's subtree reaches above v, so e is a bridge
+					// and the subtree nodes still on the stack are a
+					// 2-edge-connected component
+					bridge[e] = true;
+					int u;
+					do {
+						u = nodeStack[--nodeTop];
+						twoEdgeComponent[u] = twoEdgeComponentCount;
+					} while (u != v);
+					twoEdgeComponentCount++;
+				}
+			}
+
+			// whatever is left belongs to the root's 2-edge-connected component
+			while (nodeTop > 0)
+				twoEdgeComponent[nodeStack[--nodeTop]] = twoEdgeComponentCount;
+			twoEdgeComponentCount++;
+
+			if (rootChildren > 1)
+				articulation[root] = true;
+
+			// everything discovered from this root is one connected component
+			componentCount++;
+		}
+
+		blockEdges = new ArrayList<int[]>(blockCount);
+		for (int b = 0; b < blockCount; b++)
+			blockEdges.add(null);
+		int[] sizes = new int[blockCount];
+		for (int e = 0; e < m; e++)
+			if (edgeBlock[e] >= 0)
+				sizes[edgeBlock[e]]++;
+		for (int b = 0; b < blockCount; b++)
+			blockEdges.set(b, new int[sizes[b]]);
+		for (int e = 0; e < m; e++)
+			if (edgeBlock[e] >= 0)
+				blockEdges.get(edgeBlock[e])[--sizes[edgeBlock[e]]] = e;
+
+		Arrays.fill(nodeBlocks, 0);
+		for (int b = 0; b < blockCount; b++)
+			countBlockNodes(blockEdges.get(b), 1);
+
+		// a depth first search, so there's no priority queue
+		if (Metrics.ENABLED)
+			query.finish(time, relaxed, 0);
+	}
+
+	/**
+	 * Adds delta to the block count of every node touched by the given
+	 * segments, counting each node once.
+	 */
+	private void countBlockNodes(int[] edges, int delta) {
+		stamp++;
+		for (int e : edges) {
+			for (int v : new int[] { edgeFrom[e], edgeTo[e] }) {
+				if (mark[v] != stamp) {
+					mark[v] = stamp;
+					nodeBlocks[v] += delta;
+				}
+			}
+		}
+	}
+
+	// -------------------------------------------
+	// closures
+	// -------------------------------------------
+
+	/**
+	 * Closes a segment, and returns the segments whose block (and so whose
+	 * bridge status, or the articulation status of whose ends) may have
+	 * changed.
+	 */
+	public List<Segment> close(Segment segment) {
+		int e = segment.segmentID;
+		List<Segment> touched = new ArrayList<Segment>();
+		if (closedEdge[e])
+			return touched;
+
+		int b = edgeBlock[e];
+		boolean wasBridge = bridge[e];
+		closedEdge[e] = true;
+		if (b < 0)		// a self loop, or an end is already closed
+			return touched;
+
+		splitBlock(b, touched);
+		// only a bridge can disconnect the map; any other segment has a way
+		// around it inside its block
+		if (wasBridge)
+			splitComponent(edgeFrom[e], edgeTo[e]);
+		return touched;
+	}
+
+	/**
+	 * Closes a node, and with it every segment into it. Returns the segments
+	 * whose block may have changed.
+	 */
+	public List<Segment> close(Node node) {
+		int v = node.index;
+		List<Segment> touched = new ArrayList<Segment>();
+		if (closedNode[v])
+			return touched;
+
+		// find the blocks v is in, and a neighbour of v in each
+		List<Integer> blocks = new ArrayList<Integer>();
+		List<Integer> seeds = new ArrayList<Integer>();
+		for (int i = adjStart[v]; i < adjStart[v + 1]; i++) {
+			int e = adjEdge[i];
+			if (edgeBlock[e] >= 0 && !blocks.contains(edgeBlock[e])) {
+				blocks.add(edgeBlock[e]);
+				seeds.add(other(e, v));
+			}
+		}
+
+		closedNode[v] = true;
+		for (int b : blocks)
+			splitBlock(b, touched);
+		articulation[v] = false;
+
+		// removing v separates each of its blocks from the others, so
+		// every block but the first takes its side of the map to a new
+		// component, and v is left on its own
+		for (int i = 1; i < seeds.size(); i++)
+			relabel(seeds.get(i), componentCount++);
+		if (!blocks.isEmpty())
+			component[v] = componentCount++;
+		twoEdgeStale = true;
+		return touched;
+	}
+
+	/**
+	 * Reopens a segment. This recomputes everything from scratch.
+	 */
+	public void reopen(Segment segment) {
+		if (closedEdge[segment.segmentID]) {
+			closedEdge[segment.segmentID] = false;
+			search();
+		}
+	}
+
+	/**
+	 * Reopens a node. This recomputes everything from scratch.
+	 */
+	public void reopen(Node node) {
+		if (closedNode[node.index]) {
+			closedNode[node.index] = false;
+			search();
+		}
+	}
+
+	public boolean isClosed(Segment segment) {
+		return closedEdge[segment.segmentID];
+	}
+
+	public boolean isClosed(Node node) {
+		return closedNode[node.index];
+	}
+
+	/**
+	 * Runs the block search again on what is left of block b after a closure,
+	 * replacing b with the blocks it falls apart into. Only the nodes and
+	 * segments of b are looked at.
+	 */
+	private void splitBlock(int b, List<Segment> touched) {
+		int[] old = blockEdges.get(b);
+		blockEdges.set(b, null);
+		countBlockNodes(old, -1);
+
+		// number the nodes of the block locally, and collect its open segments
+		int count = 0, open = 0;
+		int[] nodesOf = new int[old.length * 2], edges = new int[old.length];
+		for (int e : old) {
+			touched.add(segments[e]);
+			edgeBlock[e] = -1;
+			bridge[e] = false;
+			if (isClosed(e))
+				continue;
+			edges[open++] = e;
+			for (int v : new int[] { edgeFrom[e], edgeTo[e] }) {
+				if (local[v] < 0) {
+					local[v] = count;
+					nodesOf[count++] = v;
+				}
+			}
+		}
+
+		// local adjacency, in the same compressed form as the whole graph's
+		int[] start = new int[count + 1], adj = new int[open * 2];
+		for (int i = 0; i < open; i++) {
+			start[local[edgeFrom[edges[i]]] + 1]++;
+			start[local[edgeTo[edges[i]]] + 1]++;
+		}
+		for (int v = 0; v < count; v++)
+			start[v + 1] += start[v];
+		int[] fill = Arrays.copyOf(start, count);
+		for (int i = 0; i < open; i++) {
+			adj[fill[local[edgeFrom[edges[i]]]]++] = edges[i];
+			adj[fill[local[edgeTo[edges[i]]]]++] = edges[i];
+		}
+
+		// the same search as above, but only finding blocks
+		int[] disc = new int[count], low = new int[count], parentEdge = new int[count], next = new int[count];
+		int[] dfsStack = new int[count], edgeStack = new int[open];
+		Arrays.fill(disc, -1);
+		int time = 0;
+		for (int root = 0; root < count; root++) {
+			if (disc[root] >= 0)
+				continue;
+			int dfsTop = 0, edgeTop = 0;
+			disc[root] = low[root] = time++;
+			parentEdge[root] = -1;
+			next[root] = start[root];
+			dfsStack[dfsTop++] = root;
+
+			while (dfsTop > 0) {
+				int v = dfsStack[dfsTop - 1];
+				if (next[v] < start[v + 1]) {
+					int e = adj[next[v]++];
+					if (e == parentEdge[v])
+						continue;
+					int w = local[other(e, nodesOf[v])];
+					if (disc[w] < 0) {
+						edgeStack[edgeTop++] = e;
+						parentEdge[w] = e;
+						disc[w] = low[w] = time++;
+						next[w] = start[w];
+						dfsStack[dfsTop++] = w;
+					} else if (disc[w] < disc[v]) {
+						edgeStack[edgeTop++] = e;
+						low[v] = Math.min(low[v], disc[w]);
+					}
+					continue;
+				}
+
+				dfsTop--;
+				if (v == root)
+					break;
+				int e = parentEdge[v];
+				int p = local[other(e, nodesOf[v])];
+				low[p] = Math.min(low[p], low[v]);
+				if (low[v] >= disc[p]) {
+					int first = edgeTop;
+					do {
+						edgeTop--;
+					} while (edgeStack[edgeTop] != e);
+					int[] block = Arrays.copyOfRange(edgeStack, edgeTop, first);
+					for (int f : block)
+						edgeBlock[f] = blockCount;
+					if (block.length == 1) {
+						bridge[e] = true;
+						twoEdgeStale = true;
+					}
+					blockEdges.add(block);
+					blockCount++;
+					countBlockNodes(block, 1);
+				}
+			}
+		}
+
+		for (int i = 0; i < count; i++)
+			local[nodesOf[i]] = -1;
+
+		// a node is a cut vertex exactly when it's in more than one block
+		for (int e : old) {
+			articulation[edgeFrom[e]] = nodeBlocks[edgeFrom[e]] > 1 && !closedNode[edgeFrom[e]];
+			articulation[edgeTo[e]] = nodeBlocks[edgeTo[e]] > 1 && !closedNode[edgeTo[e]];
+		}
+	}
+
+	/**
+	 * Called when the segment between a and b, a bridge, has been closed. The
+	 * side of the map reached first by a breadth first search from each end
+	 * (ie. the smaller side) is moved to a new component.
+	 */
+	private void splitComponent(int a, int b) {
+		int[] queueA = new int[16], queueB = new int[16];
+		int headA = 0, tailA = 0, headB = 0, tailB = 0;
+		int markA = ++stamp, markB = ++stamp;
+		queueA[tailA++] = a;
+		mark[a] = markA;
+		queueB[tailB++] = b;
+		mark[b] = markB;
+
+		// take turns expanding one node from each side
+		while (true) {
+			if (headA == tailA) {
+				relabel(a, componentCount++);
+				return;
+			}
+			if (headB == tailB) {
+				relabel(b, componentCount++);
+				return;
+			}
+			int v = queueA[headA++];
+			for (int i = adjStart[v]; i < adjStart[v + 1]; i++) {
+				int e = adjEdge[i];
+				int w = other(e, v);
+				if (!isClosed(e) && mark[w] != markA) {
+					mark[w] = markA;
+					if (tailA == queueA.length)
+						queueA = Arrays.copyOf(queueA, tailA * 2);
+					queueA[tailA++] = w;
+				}
+			}
+			v = queueB[headB++];
+			for (int i = adjStart[v]; i < adjStart[v + 1]; i++) {
+				int e = adjEdge[i];
+				int w = other(e, v);
+				if (!isClosed(e) && mark[w] != markB) {
+					mark[w] = markB;
+					if (tailB == queueB.length)
+						queueB = Arrays.copyOf(queueB, tailB * 2);
+					queueB[tailB++] = w;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gives everything reachable from node root the given component label.
+	 */
+	private void relabel(int root, int label) {
+		int[] queue = new int[16];
+		int head = 0, tail = 0;
+		queue[tail++] = root;
+		component[root] = label;
+		while (head < tail) {
+			int v = queue[head++];
+			for (int i = adjStart[v]; i < adjStart[v + 1]; i++) {
+				int e = adjEdge[i];
+				int w = other(e, v);
+				if (!isClosed(e) && component[w] != label) {
+					component[w] = label;
+					if (tail == queue.length)
+						queue = Arrays.copyOf(queue, tail * 2);
+					queue[tail++] = w;
+				}
+			}
+		}
+	}
+
+	// -------------------------------------------
+	// accessors for the results
+	// -------------------------------------------
+
+	public Set<Node> articulationPoints() {
+		Set<Node> set = new HashSet<Node>();
+		for (int v = 0; v < nodes.length; v++)
+			if (articulation[v])
+				set.add(nodes[v]);
+		return set;
+	}
+
+	public List<Segment> bridges() {
+		List<Segment> list = new ArrayList<Segment>();
+		for (int e = 0; e < segments.length; e++)
+			if (bridge[e])
+				list.add(segments[e]);
+		return list;
+	}
+
+	public boolean isArticulationPoint(Node node) {
+		return articulation[node.index];
+	}
+
+	public boolean isBridge(Segment segment) {
+		return bridge[segment.segmentID];
+	}
+
+	/**
+	 * Returns the biconnected components as lists of segments. Every open
+	 * segment belongs to exactly one block (apart from self loops, which belong
+	 * to none); a block of a single segment is a bridge.
+	 */
+	public List<List<Segment>> blocks() {
+		List<List<Segment>> blocks = new ArrayList<List<Segment>>();
+		for (int[] edges : blockEdges) {
+			if (edges == null)
+				continue;
+			List<Segment> block = new ArrayList<Segment>(edges.length);
+			for (int e : edges)
+				block.add(segments[e]);
+			blocks.add(block);
+		}
+		return blocks;
+	}
+
+	/**
+	 * Returns the 2-edge-connected components as sets of nodes: the parts of
+	 * the map that stay connected whichever single segment is closed.
+	 */
+	public List<Set<Node>> twoEdgeConnectedComponents() {
+		// closures can split these in ways the blocks don't track, so
+		// bring them up to date the slow way
+		if (twoEdgeStale)
+			search();
+		List<Set<Node>> comps = new ArrayList<Set<Node>>(twoEdgeComponentCount);
+		for (int c = 0; c < twoEdgeComponentCount; c++)
+			comps.add(new HashSet<Node>());
+		for (int v = 0; v < nodes.length; v++)
+			comps.get(twoEdgeComponent[v]).add(nodes[v]);
+		return comps;
+	}
+
+	public int componentOf(Node node) {
+		return component[node.index];
+	}
+
+	public int componentCount() {
+		return componentCount;
+	}
+
+	/**
+	 * Returns how many articulation points there are in each connected
+	 * component, in component order.
+	 */
+	public List<Integer> articulationCounts() {
+		int[] counts = new int[componentCount];
+		for (int v = 0; v < nodes.length; v++)
+			if (articulation[v])
+				counts[component[v]]++;
+		List<Integer> list = new ArrayList<Integer>(componentCount);
+		for (int c : counts)
+			list.add(c);
+		return list;
+	}
+}
@@ -0,0 +1,179 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Works out the total capacity of the road system between two intersections,
+ * ie. how many vehicles per hour can get from one to the other, as a maximum
+ * flow problem. Each segment carries up to its road's capacity (see
+ * Road.capacity) in each direction it can be driven, and closed segments
+ * carry nothing. Along with the flow, the minimum cut is returned: a smallest
+ * total capacity set of segments that separates the two points, which are
+ * the bottlenecks between them.
+ *
+ * The flow is found with Dinic's algorithm on primitive arrays, with the
+ * depth first searches done iteratively so long routes can't overflow the
+ * stack.
+ *
+ */
+public class CapacityAnalysis {
+	public final Node source, sink;
+	public final long capacity;		// vehicles per hour
+	public final List<Segment> minCut;
+
+	private CapacityAnalysis(Node source, Node sink, long capacity, List<Segment> minCut) {
+		this.source = source;
+		this.sink = sink;
+		this.capacity = capacity;
+		this.minCut = minCut;
+	}
+
+	public static CapacityAnalysis compute(Graph graph, Node source, Node sink) {
+		return new Network(graph).maxFlow(source, sink);
+	}
+
+	/**
+	 * The residual network. Every segment becomes a pair of arcs, 2i and 2i+1,
+	 * one in each direction; a one way road gets no capacity on its second arc.
+	 */
+	private static class Network {
+		final int n, arcs;
+		final int[] head;		// node each arc goes to
+		final long[] cap;		// remaining capacity of each arc
+		final long[] original;	// capacity of each arc before any flow
+		final int[] start, adj;	// arcs out of each node, compressed
+		final Segment[] segmentOf;	// by arc pair
+
+		final int[] level, it, queue, stack;
+
+		Network(Graph graph) {
+			n = graph.nodes.size();
+			int m = graph.segments.size();
+			arcs = 2 * m;
+			head = new int[arcs];
+			cap = new long[arcs];
+			segmentOf = new Segment[m];
+			int[] tail = new int[arcs];
+
+			TrafficOverlay overlay = graph.overlay();
+			int i = 0;
+			for (Segment s : graph.segments) {
+				long c = overlay.isClosed(s) ? 0 : s.road.capacity();
+				segmentOf[i] = s;
+				tail[2 * i] = head[2 * i + 1] = s.start.index;
+				head[2 * i] = tail[2 * i + 1] = s.end.index;
+				cap[2 * i] = c;
+				cap[2 * i + 1] = s.road.oneWay == 1 ? 0 : c;
+				i++;
+			}
+			original = cap.clone();
+
+			start = new int[n + 1];
+			for (int a = 0; a < arcs; a++)
+				start[tail[a] + 1]++;
+			for (int v = 0; v < n; v++)
+				start[v + 1] += start[v];
+			adj = new int[arcs];
+			int[] fill = Arrays.copyOf(start, n);
+			for (int a = 0; a < arcs; a++)
+				adj[fill[tail[a]]++] = a;
+
+			level = new int[n];
+			it = new int[n];
+			queue = new int[n];
+			stack = new int[n];
+		}
+
+		CapacityAnalysis maxFlow(Node sourceNode, Node sinkNode) {
+			int s = sourceNode.index, t = sinkNode.index;
+			if (s == t)
+				return new CapacityAnalysis(sourceNode, sinkNode, 0, new ArrayList<Segment>());
+
+			long flow = 0;
+			while (buildLevels(s, t)) {
+				System.arraycopy(start, 0, it, 0, n);
+				long pushed;
+				while ((pushed = augment(s, t)) > 0)
+					flow += pushed;
+			}
+
+			// the nodes still reachable from the source in the residual
+			// network are one side of a minimum cut, and the cut is every arc
+			// from that side to the other
+			buildLevels(s, -1);
+			List<Segment> cut = new ArrayList<Segment>();
+			for (int a = 0; a < arcs; a++) {
+				if (original[a] > 0 && level[head[a ^ 1]] >= 0 && level[head[a]] < 0)
+					cut.add(segmentOf[a / 2]);
+			}
+			return new CapacityAnalysis(sourceNode, sinkNode, flow, cut);
+		}
+
+		/**
+		 * Breadth first search from s over arcs with capacity left, setting the
+		 * level of every node it reaches. Returns whether t was reached.
+		 */
+		boolean buildLevels(int s, int t) {
+			Arrays.fill(level, -1);
+			int qHead = 0, qTail = 0;
+			level[s] = 0;
+			queue[qTail++] = s;
+			while (qHead < qTail) {
+				int v = queue[qHead++];
+				for (int i = start[v]; i < start[v + 1]; i++) {
+					int a = adj[i];
+					if (cap[a] > 0 && level[head[a]] < 0) {
+						level[head[a]] = level[v] + 1;
+						queue[qTail++] = head[a];
+					}
+				}
+			}
+			return t >= 0 && level[t] >= 0;
+		}
+
+		/**
+		 * Finds one path from s to t through the level graph, going forward a
+		 * level at a time, and pushes as much as it can along it. Arcs that
+		 * lead nowhere are skipped for the rest of the phase.
+		 */
+		long augment(int s, int t) {
+			int top = 0;	// stack holds the arcs of the current path
+			int v = s;
+			while (true) {
+				if (v == t) {
+					long bottleneck = Long.MAX_VALUE;
+					for (int i = 0; i < top; i++)
+						bottleneck = Math.min(bottleneck, cap[stack[i]]);
+					for (int i = 0; i < top; i++) {
+						cap[stack[i]] -= bottleneck;
+						cap[stack[i] ^ 1] += bottleneck;
+					}
+					return bottleneck;
+				}
+
+				// advance along the first useful arc out of v
+				boolean advanced = false;
+				for (; it[v] < start[v + 1]; it[v]++) {
+					int a = adj[it[v]];
+					int w = head[a];
+					if (cap[a] > 0 && level[w] == level[v] + 1) {
+						stack[top++] = a;
+						v = w;
+						advanced = true;
+						break;
+					}
+				}
+				if (advanced)
+					continue;
+
+				// dead end: retreat, and never try this node again this phase
+				level[v] = -1;
+				if (top == 0)
+					return 0;
+				int a = stack[--top];
+				v = head[a ^ 1];
+				it[v]++;
+			}
+		}
+	}
+}
@@ -0,0 +1,264 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A reusable one-to-all Dijkstra search over the directed road graph, with an
+ * optional limit on how far out it goes. Unlike Graph.AstarSearch it keeps all
+ * of its state in its own arrays, indexed by Node.index, rather than in the
+ * Nodes, so several can run at once on different threads (one Dijkstra each).
+ *
+ * The arrays are only cleared where the last search touched them, so lots of
+ * small bounded searches (eg. for map matching) don't pay for the size of
+ * the whole graph each time.
+ *
+ * Costs are either fixed per segment (a Weight) or depend on the time a
+ * segment is reached (a TravelTime, eg. from SpeedProfiles), in which case
+ * the search finds earliest arrival times instead of distances.
+ *
+ */
+public class Dijkstra {
+	/**
+	 * How much it costs to travel along a segment. Infinity means it can't be
+	 * used at all.
+	 */
+	public interface Weight {
+		double cost(Segment s);
+	}
+
+	/**
+	 * When you get to the end of a segment if you set off along it at the
+	 * given time, for costs that change through the day. Setting off later
+	 * mustn't get you there earlier.
+	 */
+	public interface TravelTime {
+		double arrival(Segment s, double time);
+	}
+
+	private final Node[] nodes;
+	private final double[] dist;
+	private final Segment[] via;		// the segment each node was reached by
+	// binary heap of node indices ordered by dist, and where each node is in
+	// it (-1 if it isn't)
+	private final int[] heap, pos;
+	// the targets of the search running now, if it has any
+	private final boolean[] wanted;
+	private int size;
+	// every node given a distance by the last search
+	private int[] touched;
+	private int touchedCount;
+	private double limit;
+
+	public Dijkstra(Graph graph) {
+		nodes = graph.nodeArray;
+		int n = nodes.length;
+		dist = new double[n];
+		via = new Segment[n];
+		heap = new int[n];
+		pos = new int[n];
+		wanted = new boolean[n];
+		touched = new int[64];
+		Arrays.fill(dist, Double.POSITIVE_INFINITY);
+		Arrays.fill(pos, -1);
+	}
+
+	/**
+	 * Finds the distance to every node that is no more than limit away from
+	 * source, using the given costs.
+	 */
+	public void run(Node source, double limit, Weight weight) {
+		run(Collections.singletonList(source), limit, weight);
+	}
+
+	/**
+	 * Finds the distance to every node within limit of the nearest of the
+	 * sources.
+	 */
+	public void run(List<Node> sources, double limit, Weight weight) {
+		search(sources, Collections.<Node>emptyList(), 0, limit, (s, d) -> d + weight.cost(s));
+	}
+
+	/**
+	 * Finds the shortest path from source to target, stopping as soon as it
+	 * is known. Nodes closer to the source than the target are also done.
+	 */
+	public void run(Node source, Node target, double limit, Weight weight) {
+		search(Collections.singletonList(source), Collections.singletonList(target), 0, limit,
+				(s, d) -> d + weight.cost(s));
+	}
+
+	/**
+	 * Finds the shortest paths from source to each of the targets, stopping
+	 * once they're all known.
+	 */
+	public void run(Node source, Collection<Node> targets, double limit, Weight weight) {
+		search(Collections.singletonList(source), targets, 0, limit, (s, d) -> d + weight.cost(s));
+	}
+
+	/**
+	 * Finds the earliest arrival at target setting off from source at the
+	 * given time, with travel times that depend on the time. distance() then
+	 * gives arrival times rather than distances.
+	 */
+	public void run(Node source, Node target, double departure, TravelTime travel) {
+		search(Collections.singletonList(source), Collections.singletonList(target), departure,
+				Double.POSITIVE_INFINITY, travel);
+	}
+
+	private void search(List<Node> sources, Collection<Node> targets, double start, double limit,
+			TravelTime travel) {
+		Metrics.Query query = Metrics.ENABLED ? Metrics.start("dijkstra") : null;
+		long settled = 0, relaxed = 0;
+
+		clear();
+		this.limit = limit;
+		int remaining = 0;
+		for (Node t : targets) {
+			if (!wanted[t.index]) {
+				wanted[t.index] = true;
+				remaining++;
+			}
+		}
+		for (Node s : sources)
+			reach(s.index, start, null);
+
+		while (size > 0) {
+			int v = pop();
+			if (Metrics.ENABLED)
+				settled++;
+			if (wanted[v] && --remaining == 0) {
+				// anything left in the heap isn't settled, so shouldn't be
+				// reported as reached
+				this.limit = dist[v];
+				break;
+			}
+			for (Segment s : nodes[v].outNeighbours) {
+				double d = travel.arrival(s, dist[v]);
+				if (Metrics.ENABLED)
+					relaxed++;
+				if (d <= limit && d < dist[s.end.index])
+					reach(s.end.index, d, s);
+			}
+		}
+
+		for (Node t : targets)
+			wanted[t.index] = false;
+
+		// heap operations: a push for every node reached, and a pop for
+		// every node settled
+		if (Metrics.ENABLED)
+			query.finish(settled, relaxed, touchedCount + settled);
+	}
+
+	/**
+	 * Returns the distance found to the given node, or infinity if it's
+	 * further than the limit or can't be reached.
+	 */
+	public double distance(Node node) {
+		double d = dist[node.index];
+		return d <= limit ? d : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Returns the segments along the shortest path to the given node, from the
+	 * source, or null if it wasn't reached.
+	 */
+	public List<Segment> pathTo(Node node) {
+		if (distance(node) == Double.POSITIVE_INFINITY)
+			return null;
+		List<Segment> path = new ArrayList<Segment>();
+		for (Segment s = via[node.index]; s != null; s = via[s.start.index])
+			path.add(s);
+		Collections.reverse(path);
+		return path;
+	}
+
+	/**
+	 * Returns every node reached by the last search.
+	 */
+	public List<Node> reached() {
+		List<Node> list = new ArrayList<Node>(touchedCount);
+		for (int i = 0; i < touchedCount; i++)
+			if (dist[touched[i]] <= limit)
+				list.add(nodes[touched[i]]);
+		return list;
+	}
+
+	private void clear() {
+		for (int i = 0; i < touchedCount; i++) {
+			int v = touched[i];
+			dist[v] = Double.POSITIVE_INFINITY;
+			via[v] = null;
+			pos[v] = -1;
+		}
+		touchedCount = 0;
+		size = 0;
+	}
+
+	/**
+	 * Gives node v the (smaller) distance d, putting it in the heap or moving
+	 * it up as needed.
+	 */
+	private void reach(int v, double d, Segment by) {
+		if (dist[v] == Double.POSITIVE_INFINITY) {
+			if (touchedCount == touched.length)
+				touched = Arrays.copyOf(touched, touchedCount * 2);
+			touched[touchedCount++] = v;
+		}
+		if (d >= dist[v])
+			return;
+		dist[v] = d;
+		via[v] = by;
+		if (pos[v] < 0) {
+			heap[size] = v;
+			pos[v] = size++;
+		}
+		siftUp(pos[v]);
+	}
+
+	private int pop() {
+		int top = heap[0];
+		pos[top] = -2;	// settled, never goes back in
+		size--;
+		if (size > 0) {
+			heap[0] = heap[size];
+			pos[heap[0]] = 0;
+			siftDown(0);
+		}
+		return top;
+	}
+
+	private void siftUp(int i) {
+		int v = heap[i];
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (dist[heap[parent]] <= dist[v])
+				break;
+			heap[i] = heap[parent];
+			pos[heap[i]] = i;
+			i = parent;
+		}
+		heap[i] = v;
+		pos[v] = i;
+	}
+
+	private void siftDown(int i) {
+		int v = heap[i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && dist[heap[child + 1]] < dist[heap[child]])
+				child++;
+			if (dist[heap[child]] >= dist[v])
+				break;
+			heap[i] = heap[child];
+			pos[heap[i]] = i;
+			i = child;
+		}
+		heap[i] = v;
+		pos[v] = i;
+	}
+}
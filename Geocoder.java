@@ -0,0 +1,198 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns addresses of the form "street name, city" into a location on the map
+ * and the intersection to route from. Each street is represented by the point
+ * half way along its length, and by the node on the street nearest to that
+ * point. These are all worked out when the Geocoder is made, so a lookup is
+ * just a couple of hash map gets.
+ *
+ * The city can be left off; if several cities have a street of that name the
+ * longest one is used.
+ *
+ * Run on its own, it geocodes a whole file of addresses, one per line:
+ *
+ * java Geocoder data-directory addresses-file output-file
+ *
+ */
+public class Geocoder {
+	private final StreetIndex streets;
+	private final Map<StreetIndex.Street, Geocode> geocodes = new HashMap<>();
+
+	public Geocoder(StreetIndex streets) {
+		this.streets = streets;
+		for (StreetIndex.Street street : streets.all()) {
+			Geocode g = locate(street);
+			if (g != null)
+				geocodes.put(street, g);
+		}
+	}
+
+	/**
+	 * Returns where the given address is, or null if it isn't a street we know.
+	 */
+	public Geocode geocode(String address) {
+		int comma = address.lastIndexOf(',');
+		if (comma >= 0) {
+			String name = address.substring(0, comma).trim();
+			String city = address.substring(comma + 1).trim();
+			StreetIndex.Street street = streets.get(name, city);
+			return street == null ? null : geocodes.get(street);
+		}
+
+		// no city, so pick the longest street of that name
+		List<StreetIndex.Street> named = streets.byName(address.trim());
+		StreetIndex.Street best = null;
+		for (StreetIndex.Street street : named) {
+			if (best == null || street.length > best.length)
+				best = street;
+		}
+		return best == null ? null : geocodes.get(best);
+	}
+
+	/**
+	 * Geocodes every line of in, writing a tab separated line to out for each:
+	 * the address, then the node ID, latitude and longitude, or "-" if it
+	 * couldn't be found. Returns how many were found.
+	 */
+	public int geocodeAll(BufferedReader in, Writer out) throws IOException {
+		int found = 0;
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.trim().isEmpty())
+				continue;
+			Geocode g = geocode(line);
+			out.write(line.trim());
+			if (g == null) {
+				out.write("\t-\n");
+			} else {
+				out.write(String.format("\t%d\t%.6f\t%.6f\n", g.node.nodeID,
+						g.location.latitude(), g.location.longitude()));
+				found++;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Finds the point half way along a street's chains of segments, and the
+	 * street's node closest to it.
+	 */
+	private static Geocode locate(StreetIndex.Street street) {
+		if (street.chains.length < 2)
+			return null;
+		double[] point = new double[2];
+		walk(street, walk(street, -1, point) / 2, point);
+		Location middle = new Location(point[0], point[1]);
+
+		Node nearest = null;
+		for (Road road : street.roads) {
+			for (Segment s : road.components) {
+				for (Node n : new Node[] { s.start, s.end }) {
+					if (nearest == null || middle.distance(n.location) < middle.distance(nearest.location))
+						nearest = n;
+				}
+			}
+		}
+		return nearest == null ? null : new Geocode(street, middle, nearest);
+	}
+
+	/**
+	 * Walks the street's chains, decoding each segment's shape from the
+	 * geometry store, and returns their total length. If distance isn't
+	 * negative, the point that far along is left in point, or the start of
+	 * the first chain if it's past the end. A chain's joints are only counted
+	 * once, and the gaps between chains not at all.
+	 */
+	private static double walk(StreetIndex.Street street, double distance, double[] point) {
+		double[] xy = new double[16];
+		double total = 0, remaining = distance, px = 0, py = 0, mx = 0, my = 0;
+		for (int c = 0; c + 1 < street.chains.length; c++) {
+			for (int k = street.chains[c]; k < street.chains[c + 1]; k++) {
+				int n = street.geometry.count(street.segmentIDs[k]);
+				if (xy.length < 2 * n)
+					xy = new double[2 * n];
+				street.geometry.decode(street.segmentIDs[k], xy);
+				// after the first segment, the first point is the joint with
+				// the previous one
+				for (int i = k == street.chains[c] ? 0 : 1; i < n; i++) {
+					int j = street.forward[k] ? i : n - 1 - i;
+					double x = xy[2 * j], y = xy[2 * j + 1];
+					if (k == street.chains[c] && i == 0) {
+						if (c == 0) {
+							mx = x;
+							my = y;
+						}
+					} else {
+						double d = Math.hypot(x - px, y - py);
+						total += d;
+						if (remaining >= 0 && d >= remaining) {
+							double t = d == 0 ? 0 : remaining / d;
+							mx = px + t * (x - px);
+							my = py + t * (y - py);
+						}
+						remaining -= d;
+					}
+					px = x;
+					py = y;
+				}
+			}
+		}
+		point[0] = mx;
+		point[1] = my;
+		return total;
+	}
+
+	/**
+	 * Where an address is: the street it's on, a representative point, and
+	 * the intersection nearest that point.
+	 */
+	public static class Geocode {
+		public final StreetIndex.Street street;
+		public final Location location;
+		public final Node node;
+
+		Geocode(StreetIndex.Street street, Location location, Node node) {
+			this.street = street;
+			this.location = location;
+			this.node = node;
+		}
+
+		public String toString() {
+			return street + " at node " + node.nodeID + " " + location;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			System.err.println("usage: java Geocoder data-directory addresses-file output-file");
+			return;
+		}
+		File dir = new File(args[0]);
+		Graph graph = new Graph(new File(dir, GUI.NODES_FILENAME),
+				new File(dir, GUI.ROADS_FILENAME), new File(dir, GUI.SEGS_FILENAME), null);
+		Geocoder geocoder = new Geocoder(new StreetIndex(graph.roads.values()));
+
+		BufferedReader in = new BufferedReader(new FileReader(args[1]));
+		BufferedWriter out = new BufferedWriter(new FileWriter(args[2]));
+		long begin = System.nanoTime();
+		int found;
+		try {
+			found = geocoder.geocodeAll(in, out);
+		} finally {
+			in.close();
+			out.close();
+		}
+		System.out.printf("geocoded %d addresses in %.1f ms%n", found,
+				(System.nanoTime() - begin) / 1e6);
+	}
+}
@@ -0,0 +1,212 @@
+import java.awt.Graphics;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Holds the shapes of all the segments outside the Java heap, in one direct
+ * ByteBuffer, instead of as an array of Location objects per segment. A
+ * Location is 32 bytes of object plus a reference to it; here a shape point
+ * usually takes three or four bytes, and the garbage collector never has to
+ * look at any of them.
+ *
+ * Points are stored in projected coordinates rounded to the centimetre. Each
+ * segment's shape is its point count, then its first point, then the change
+ * from each point to the next, all as zigzag varints, so the short steps
+ * along a road take a byte or two each. Shapes are looked up by
+ * Segment.segmentID, which the reverse segments share.
+ *
+ * Shapes can only be read from the start, so the readers here either walk a
+ * whole shape or decode into an array the caller supplies. Once loading is
+ * done the store is never changed, so it can be read from many threads at
+ * once.
+ *
+ */
+public class GeometryStore {
+	// kilometres per stored unit
+	private static final double UNIT = 1e-5;
+	private static final int INITIAL_CAPACITY = 1 << 16;
+
+	private ByteBuffer data = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+	// the shape of segment i starts at byte offsets[i]
+	private int[] offsets = new int[1024];
+	private int size;
+
+	/**
+	 * Adds the shape of the next segment, given as latitude, longitude pairs
+	 * in the format of the data files, and returns its ID.
+	 */
+	public int add(double[] latLon) {
+		if (size == offsets.length)
+			offsets = Arrays.copyOf(offsets, size * 2);
+		offsets[size] = data.position();
+		int n = latLon.length / 2;
+		ensure(5 * (1 + 2 * n));
+		putVarint(n);
+		int px = 0, py = 0;
+		for (int i = 0; i < n; i++) {
+			Location loc = Location.newFromLatLon(latLon[2 * i], latLon[2 * i + 1]);
+			int x = (int) Math.round(loc.x / UNIT), y = (int) Math.round(loc.y / UNIT);
+			putVarint(zigzag(x - px));
+			putVarint(zigzag(y - py));
+			px = x;
+			py = y;
+		}
+		return size++;
+	}
+
+	/**
+	 * Gives back the spare capacity left over from loading.
+	 */
+	public void trim() {
+		ByteBuffer trimmed = ByteBuffer.allocateDirect(data.position());
+		data.flip();
+		trimmed.put(data);
+		data = trimmed;
+		offsets = Arrays.copyOf(offsets, size);
+	}
+
+	private void ensure(int bytes) {
+		if (data.remaining() >= bytes)
+			return;
+		ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(data.capacity() * 2, data.position() + bytes));
+		data.flip();
+		bigger.put(data);
+		data = bigger;
+	}
+
+	/**
+	 * Returns the number of segment shapes held.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns how many bytes the shapes take up off the heap.
+	 */
+	public long bytes() {
+		return data.capacity();
+	}
+
+	/**
+	 * Returns the number of points in the shape of the given segment.
+	 */
+	public int count(int id) {
+		return new Reader(offsets[id]).next();
+	}
+
+	/**
+	 * Decodes the shape of the given segment into xy as x, y pairs, and
+	 * returns the number of points. xy must have room for them all.
+	 */
+	public int decode(int id, double[] xy) {
+		Reader r = new Reader(offsets[id]);
+		int n = r.next();
+		int x = 0, y = 0;
+		for (int i = 0; i < n; i++) {
+			x += unzigzag(r.next());
+			y += unzigzag(r.next());
+			xy[2 * i] = x * UNIT;
+			xy[2 * i + 1] = y * UNIT;
+		}
+		return n;
+	}
+
+	/**
+	 * Decodes the straight piece of the given segment from point i to point
+	 * i + 1 into ab as ax, ay, bx, by.
+	 */
+	public void piece(int id, int i, double[] ab) {
+		Reader r = new Reader(offsets[id]);
+		r.next();
+		int x = 0, y = 0;
+		for (int k = 0; k <= i + 1; k++) {
+			x += unzigzag(r.next());
+			y += unzigzag(r.next());
+			if (k >= i) {
+				ab[2 * (k - i)] = x * UNIT;
+				ab[2 * (k - i) + 1] = y * UNIT;
+			}
+		}
+	}
+
+	/**
+	 * Returns the shape of the given segment as x, y pairs.
+	 */
+	public double[] coordinates(int id) {
+		double[] xy = new double[2 * count(id)];
+		decode(id, xy);
+		return xy;
+	}
+
+	/**
+	 * Returns the shape of the given segment as Locations.
+	 */
+	public Location[] points(int id) {
+		double[] xy = coordinates(id);
+		Location[] points = new Location[xy.length / 2];
+		for (int i = 0; i < points.length; i++)
+			points[i] = new Location(xy[2 * i], xy[2 * i + 1]);
+		return points;
+	}
+
+	/**
+	 * Draws the shape of the given segment straight from the buffer, without
+	 * making any objects.
+	 */
+	public void draw(Graphics g, int id, Location origin, double scale) {
+		Reader r = new Reader(offsets[id]);
+		int n = r.next();
+		int x = 0, y = 0, pu = 0, pv = 0;
+		for (int i = 0; i < n; i++) {
+			x += unzigzag(r.next());
+			y += unzigzag(r.next());
+			// the same rounding as Location.asPoint
+			int u = (int) ((x * UNIT - origin.x) * scale);
+			int v = (int) ((origin.y - y * UNIT) * scale);
+			if (i > 0)
+				g.drawLine(pu, pv, u, v);
+			pu = u;
+			pv = v;
+		}
+	}
+
+	private void putVarint(int v) {
+		while ((v & ~0x7f) != 0) {
+			data.put((byte) ((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		data.put((byte) v);
+	}
+
+	private static int zigzag(int v) {
+		return (v << 1) ^ (v >> 31);
+	}
+
+	private static int unzigzag(int v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * Reads varints from a position in the buffer. It never leaves the
+	 * method that makes it, so escape analysis keeps it off the heap.
+	 */
+	private class Reader {
+		private final ByteBuffer buf = data;
+		private int at;
+
+		Reader(int at) {
+			this.at = at;
+		}
+
+		int next() {
+			int v = 0;
+			for (int shift = 0;; shift += 7) {
+				byte b = buf.get(at++);
+				v |= (b & 0x7f) << shift;
+				if (b >= 0)
+					return v;
+			}
+		}
+	}
+}
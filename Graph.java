@@ -10,12 +10,11 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.Stack;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This represents the data structure storing all the roads, nodes, and
@@ -26,18 +25,77 @@ import java.util.Stack;
 public class Graph {
 	// map node IDs to Nodes.
 	Map<Integer, Node> nodes = new HashMap<>();
+	// the same Nodes, by Node.index, and the index of each node ID
+	Node[] nodeArray;
+	private NodeIdIndex nodeIds;
 	// map road IDs to Roads.
 	Map<Integer, Road> roads;
 	// just some collection of Segments.
 	Collection<Segment> segments;
+	// the shapes of the segments, by segmentID
+	final GeometryStore geometry = new GeometryStore();
+	// which nodes can drive to each other, worked out when loaded
+	private StrongComponents strongComponents;
+	// how fast each road is through the day
+	private SpeedProfiles speedProfiles;
 
 	Node highlightedNode;
 	Collection<Road> highlightedRoads = new HashSet<>();
+	Collection<StreetIndex.Street> highlightedStreets = new ArrayList<>();
+	// critical road segments, found along with the articulation points
+	Collection<Segment> bridges = new HashSet<>();
+	// bottleneck segments between the two selected intersections
+	Collection<Segment> minCut = new HashSet<>();
+	// other ways between the selected intersections, besides the best route
+	Collection<Route> alternatives = new ArrayList<>();
+	// the area reachable from the selected stations, if any
+	Isochrone isochrone;
+	// the route round a courier's stops, if any
+	Route tour;
+	// how busy each intersection is, shown as a heat map if set
+	Betweenness betweenness;
+
+	// bridges, blocks and components of the road network, computed on demand
+	private Biconnectivity biconnectivity;
+
+	// live closures and cost changes that routing has to respect. updates
+	// swap in a new overlay, so queries never see a half applied change.
+	private final AtomicReference<TrafficOverlay> overlay = new AtomicReference<>(TrafficOverlay.EMPTY);
+
+	// the goal of the last A* search, and whether it got there
+	private Node searchGoal;
+	private boolean searchFound;
 
 	public Graph(File nodes, File roads, File segments, File polygons) {
 		this.nodes = Parser.parseNodes(nodes, this);
+
+		// give every node a dense index so algorithms can use arrays. the
+		// parser hands the nodes over in Hilbert curve order, so nodes near
+		// each other on the map are near each other in these arrays too.
+		int index = 0;
+		nodeArray = new Node[this.nodes.size()];
+		int[] ids = new int[nodeArray.length];
+		for (Node n : this.nodes.values()) {
+			nodeArray[index] = n;
+			ids[index] = n.nodeID;
+			n.index = index++;
+		}
+		nodeIds = new NodeIdIndex(ids);
+
 		this.roads = Parser.parseRoads(roads, this);
 		this.segments = Parser.parseSegments(segments, this);
+		geometry.trim();
+		strongComponents = new StrongComponents(this);
+		speedProfiles = SpeedProfiles.load(new File(nodes.getAbsoluteFile().getParentFile(),
+				SpeedProfiles.FILENAME), this);
+	}
+
+	/**
+	 * Returns the node with the given ID from the data files, or null.
+	 */
+	public Node node(int nodeID) {
+		int index = nodeIds.get(nodeID);
+		return index < 0 ? null : nodeArray[index];
 	}
 
 	public void draw(Graphics g, Dimension screen, Location origin, double scale) {
@@ -49,7 +107,10 @@ public class Graph {
 
 		// draw all the segments.
 		for (Segment s : segments) {
-			if (s.highlight) {		// highlighted segment used for route finder
+			if (isClosed(s)) {		// closed for an incident
+				g2.setColor(Color.black);
+				s.draw(g2, origin, scale);
+			} else if (s.highlight) {		// highlighted segment used for route finder
 				g2.setColor(Color.green.darker());
 				s.draw(g2, origin, scale);
 			} else if (s.road.notForCar == 1) {	//permanently highlight segments that are not for cars
@@ -64,6 +125,43 @@ public class Graph {
 			}	
 		}
 
+		// shade the area the stations can reach under everything else
+		if (isochrone != null) {
+			isochrone.draw(g2, origin, scale);
+		}
+
+		// draw the bridges, ie. critical road segments, on top
+		g2.setColor(Color.orange);
+		g2.setStroke(new BasicStroke(2));
+		for (Segment s : bridges) {
+			s.draw(g2, origin, scale);
+		}
+
+		// draw the bottlenecks found by the capacity analysis
+		g2.setColor(Color.blue);
+		g2.setStroke(new BasicStroke(3));
+		for (Segment s : minCut) {
+			s.draw(g2, origin, scale);
+		}
+
+		// draw the alternative routes between the selected intersections
+		g2.setColor(Color.pink.darker());
+		g2.setStroke(new BasicStroke(2));
+		for (Route route : alternatives) {
+			for (Segment s : route.segments) {
+				s.draw(g2, origin, scale);
+			}
+		}
+
+		// draw the route round the stops of a tour
+		if (tour != null) {
+			g2.setColor(Color.green.darker());
+			g2.setStroke(new BasicStroke(3));
+			for (Segment s : tour.segments) {
+				s.draw(g2, origin, scale);
+			}
+		}
+
 		// draw the segments of all highlighted roads -- used for search query
 		g2.setColor(Mapper.HIGHLIGHT_COLOUR);
 		g2.setStroke(new BasicStroke(3));
@@ -72,9 +170,12 @@ public class Graph {
 				seg.draw(g2, origin, scale);
 			}
 		}
+		for (StreetIndex.Street street : highlightedStreets) {
+			street.draw(g2, origin, scale);
+		}
 
 		// draw all the nodes.
-		for (Node n : nodes.values()) {
+		for (Node n : nodeArray) {
 			if (!n.highlight && !n.critical) {	//draw using original colour
 				g2.setColor(Mapper.NODE_COLOUR);
 				n.draw(g2, screen, origin, scale);
@@ -87,13 +188,18 @@ public class Graph {
 			}
 		}
 
+		// shade the busiest intersections over the other nodes
+		if (betweenness != null) {
+			betweenness.draw(g2, screen, origin, scale);
+		}
+
 		// draw the highlighted node, if it exists -- used in node select
 		if (highlightedNode != null) {
 			g2.setColor(Mapper.HIGHLIGHT_COLOUR);
 			highlightedNode.draw(g2, screen, origin, scale);
 		}
 		
-		for (Node n: nodes.values()) {	//reset node highlight from route finding
+		for (Node n: nodeArray) {	//reset node highlight from route finding
 			n.highlight = false;
 		}
 		
@@ -103,6 +209,23 @@ public class Graph {
 		}
 	}
 
+	/**
+	 * Returns the node nearest to the given location, or null if there are
+	 * no nodes.
+	 */
+	public Node closestNode(Location loc) {
+		double bestDist = Double.MAX_VALUE;
+		Node closest = null;
+		for (Node node : nodeArray) {
+			double distance = loc.distance(node.location);
+			if (distance < bestDist) {
+				bestDist = distance;
+				closest = node;
+			}
+		}
+		return closest;
+	}
+
 	public void setHighlight(Node node) {
 		this.highlightedNode = node;
 	}
@@ -110,14 +233,183 @@ public class Graph {
 	public void setHighlight(Collection<Road> roads) {
 		this.highlightedRoads = roads;
 	}
+
+	public void setHighlightStreets(Collection<StreetIndex.Street> streets) {
+		this.highlightedStreets = streets;
+	}
+
+	public void setAlternatives(Collection<Route> alternatives) {
+		this.alternatives = alternatives;
+	}
+
+	public void setTour(Route tour) {
+		this.tour = tour;
+	}
+
+	public void setIsochrone(Isochrone isochrone) {
+		this.isochrone = isochrone;
+	}
+
+	public void setBetweenness(Betweenness betweenness) {
+		this.betweenness = betweenness;
+	}
+
+	public void setMinCut(Collection<Segment> minCut) {
+		this.minCut = minCut;
+	}
+
+	public void setBridges(Collection<Segment> bridges) {
+		this.bridges = new HashSet<>(bridges);
+	}
+
+	/**
+	 * Closes a road segment, eg. for an incident. The articulation points,
+	 * bridges and components are updated straight away, touching only the
+	 * block of the network the segment is in.
+	 */
+	public void closeSegment(Segment segment) {
+		refreshCritical(biconnectivity().close(segment));
+		overlay.updateAndGet(o -> o.withClosed(segment));
+	}
+
+	/**
+	 * Closes an intersection, and so every segment into it.
+	 */
+	public void closeNode(Node node) {
+		refreshCritical(biconnectivity().close(node));
+		node.critical = false;
+		overlay.updateAndGet(o -> {
+			for (Segment s : node.allNeighbours())
+				o = o.withClosed(s);
+			return o;
+		});
+	}
+
+	public void reopenSegment(Segment segment) {
+		biconnectivity().reopen(segment);
+		refreshCritical(segments);
+		if (!isClosed(segment.start) && !isClosed(segment.end))
+			overlay.updateAndGet(o -> o.without(segment));
+	}
+
+	public void reopenNode(Node node) {
+		biconnectivity().reopen(node);
+		refreshCritical(segments);
+		overlay.updateAndGet(o -> {
+			for (Segment s : node.allNeighbours()) {
+				// the segment may still be closed itself, or at its other end
+				if (!isClosed(s) && !isClosed(s.start) && !isClosed(s.end))
+					o = o.without(s);
+			}
+			return o;
+		});
+	}
+
+	/**
+	 * Sets the cost of travelling along a segment, in place of its length, eg.
+	 * to slow it down for roadworks. Closed segments stay closed. The cost
+	 * shouldn't be less than the straight line distance, or A* may miss
+	 * the shortest route.
+	 */
+	public void setSegmentCost(Segment segment, double cost) {
+		overlay.updateAndGet(o -> o.isClosed(segment) ? o : o.withCost(segment, cost));
+	}
+
+	/**
+	 * Puts the cost of a segment back to its length.
+	 */
+	public void clearSegmentCost(Segment segment) {
+		overlay.updateAndGet(o -> o.isClosed(segment) ? o : o.without(segment));
+	}
+
+	/**
+	 * Returns the current closures and cost changes. Queries should read this
+	 * once and use it throughout.
+	 */
+	public TrafficOverlay overlay() {
+		return overlay.get();
+	}
+
+	public boolean isClosed(Segment segment) {
+		return biconnectivity != null && biconnectivity.isClosed(segment);
+	}
+
+	public boolean isClosed(Node node) {
+		return biconnectivity != null && biconnectivity.isClosed(node);
+	}
+
+	/**
+	 * Brings the highlighted articulation points and bridges up to date for
+	 * the given segments and the nodes at their ends.
+	 */
+	private void refreshCritical(Collection<Segment> changed) {
+		Biconnectivity bc = biconnectivity();
+		for (Segment s : changed) {
+			if (bc.isBridge(s))
+				bridges.add(s);
+			else
+				bridges.remove(s);
+			s.start.critical = bc.isArticulationPoint(s.start);
+			s.end.critical = bc.isArticulationPoint(s.end);
+		}
+	}
+
+	/**
+	 * Returns the articulation points, bridges, biconnected and
+	 * 2-edge-connected components of the graph. This is one linear-time pass,
+	 * which is run the first time it's asked for.
+	 */
+	public synchronized Biconnectivity biconnectivity() {
+		if (biconnectivity == null)
+			biconnectivity = new Biconnectivity(this);
+		return biconnectivity;
+	}
 	
+	/**
+	 * Returns the strongly connected components of the road network.
+	 */
+	public StrongComponents strongComponents() {
+		return strongComponents;
+	}
+
+	/**
+	 * Returns the time of day speed profiles of the roads.
+	 */
+	public SpeedProfiles speedProfiles() {
+		return speedProfiles;
+	}
+
 	public void AstarSearch(Node start, Node goal){
+		AstarSearch(start, goal, overlay.get());
+	}
+
+	/**
+	 * A* with the given closures and cost changes instead of the current
+	 * ones. With null every segment just costs its length, as before there
+	 * was an overlay, which Benchmark uses as the baseline.
+	 */
+	public void AstarSearch(Node start, Node goal, TrafficOverlay costs){
+		searchGoal = goal;
+		searchFound = false;
+
+		//no route at all, so don't look for one
+		if (strongComponents.cannotReach(start, goal)) {
+			if (Metrics.ENABLED) {
+				Metrics.start("astar-unreachable").finish(0, 0, 0);
+			}
+			return;
+		}
+
 		//initilise all nodes parent to null and calculate heuristic score using Eucleadian distance 
-		for (Node n: nodes.values()) {
+		for (Node n: nodeArray) {
 			n.h_score = n.location.distance(goal.location);
 			n.f_score = 0;
 			n.parent = null;
 		}
+
+		//work done, only counted when metrics are switched on
+		Metrics.Query query = Metrics.ENABLED ? Metrics.start("astar") : null;
+		long settled = 0, relaxed = 0, heapOps = 0;
 		
 		//maintain both a visited set and a parent field in node
 		Set<Node> explored = new HashSet<Node>();
@@ -131,6 +423,7 @@ public class Graph {
 		fringe.add(start);
 
 		boolean found = false;
+		int from = start.index, to = goal.index;
 
 		//repeat until goal not found
 		while((!fringe.isEmpty())&&(!found)){
@@ -139,6 +432,10 @@ public class Graph {
 			
 			//add to explored set
 			explored.add(current);
+			if (Metrics.ENABLED) {
+				settled++;
+				heapOps++;
+			}
 
 			//goal found
 			if(current.equals(goal)){
@@ -148,7 +445,16 @@ public class Graph {
 			//check every child i.e. outNeighbour of current node
 			for(Segment s : current.outNeighbours){
 				Node child = s.end;		//node at other end of segment
-				double cost = s.length;	
+				double cost = costs == null ? s.length : costs.cost(s);	//segment length unless changed in the overlay
+				if (cost == Double.POSITIVE_INFINITY) {		//closed
+					continue;
+				}
+				if (!strongComponents.mayPassThrough(child.index, from, to)) {		//can't get back on the way to goal from there
+					continue;
+				}
+				if (Metrics.ENABLED) {
+					relaxed++;
+				}
 				double temp_g_scores = current.g_score + cost;		//current distance + segment length
 				double temp_f_scores = temp_g_scores + child.h_score;	//current distance + segment length + heuristic
 
@@ -164,14 +470,25 @@ public class Graph {
 					//remove child from fringe
 					if(fringe.contains(child)){
 						fringe.remove(child);
+						if (Metrics.ENABLED) {
+							heapOps++;
+						}
 					}
 					//add child to fringe
 					//remember: priority based on NEW f_score of child
 					fringe.add(child);
+					if (Metrics.ENABLED) {
+						heapOps++;
+					}
 				}
 			}
 		}
 
+		searchFound = found;
+		if (Metrics.ENABLED) {
+			query.finish(settled, relaxed, heapOps);
+		}
+
 	}
 	
 	//compares nodes based f_score: smallest --> largest
@@ -188,9 +505,13 @@ public class Graph {
 		}
      }
 
-	//returns  a list of nodes in shortest path from start --> goal
+	//returns  a list of nodes in shortest path from start --> goal,
+	//empty if the last search couldn't reach it
 	public List<Node> printPath(Node target){
 		List<Node> path = new ArrayList<Node>();
+		if (target == searchGoal && !searchFound) {
+			return path;
+		}
 		//goal to start i.e. follow node.parent
 		for(Node node = target; node!=null; node = node.parent){
 			path.add(node);
@@ -199,152 +520,6 @@ public class Graph {
 		//from: goal --> start; to: start --> goal
 		Collections.reverse(path);
 		return path;
-	} 
-	
-	//this will only be called once when the data is first loaded
-	public void articulation (Node start, Set<Node> artPn) {
-		//for all nodes
-		for (Node n: nodes.values()) {
-			//set depth to infinity, reachBack to 0 and parent to null
-			n.depth = Integer.MAX_VALUE;
-			n.reachBack = 0;
-			n.parent = null;
-		}
-		
-		//depth of start node is 0 and subtree is 0
-		start.depth = 0;
-		int subTree = 0;
-		
-		//for all neighbours of start node , inNeigh+outNeigh
-		for (Segment s: start.allNeighbours()) {
-			/*if (s.road.notForCar == 1) {		//include forCar roads only
-				continue;
-			}*/
-			
-			Node neigh = s.end;		//node at other end of segment
-			//if neighbour depth  is set to infinity
-			if (neigh.depth ==  Integer.MAX_VALUE) {
-				start.visited = true;
-				neigh.visited = true;
-				iterArtPts(neigh, start, artPn);
-				subTree++;
-			}
-		}
-		
-		if (subTree > 1) {
-			artPn.add(start);
-		}
-	}
-
-	private void iterArtPts(Node firstNode, Node root, Set<Node> set) {
-		//maintain a stack
-		Stack<Node> stack = new Stack <Node>();
-		//put firstNode in stack
-		firstNode.depth = 1;
-		firstNode.parent = root;
-		stack.push(firstNode);
-		firstNode.visited = true;
-		
-		//repeat until stack is empty
-		while (!stack.isEmpty()) {
-			//make a copy of node at top of stack
-			Node elem  = stack.peek();
-			Node node = elem;
-			
-			//first visit
-			if (elem.children == null) {
-				node.depth = elem.depth;
-				elem.reachBack = elem.depth;
-				node.visited = true;
-
-				elem.children  = new LinkedList<Node>();
-				//for all neighbours, inNeigh+outNeigh of node
-				for (Segment s: node.allNeighbours()) {
-					/*if (s.road.notForCar == 1) {		//include forCar roads only
-						continue;
-					}*/
-					
-					Node neigh = s.end;		//node at other end of segment
-					if  (!neigh.equals(elem.parent) ) { 
-						//if end node != parent of this node, add end node to children of this node
-						elem.children.add(neigh);
-					}
-				}
-			//process children of node
-			} else if (!elem.children.isEmpty()) {
-				Node child = elem.children.poll();
-				child.visited = true;
-				if (child.depth < Integer.MAX_VALUE) {
-					elem.reachBack = Math.min(elem.reachBack, child.depth);
-				} else {
-					//add child to stack
-					child.depth = node.depth+1;
-					child.parent = elem;
-					stack.push(child);
-				}
-			//last visit
-			} else {
-				if  (!node.equals(firstNode) ) {   
-					if  (elem.reachBack >= elem.parent.depth) {  
-						//add as articulation point
-						elem.parent.visited = true;
-						set.add (elem.parent);
-					}
-					elem.parent.reachBack =  Math.min (elem.parent.reachBack,   elem.reachBack);
-				}
-				//remove from stack
-				stack.pop();
-			}
-			
-		}
 	}
-	
-	//recursive Articulation points
-	/*public void articulation (Node start,  Set<Node> artPn) {
-
-		for (Node n: nodes.values()) {
-			n.depth = Integer.MAX_VALUE;
-			n.reachBack = 0;
-		}
-		
-		int subTree = 0;
-		for (Segment s: start.allNeighbours()) {
-			Node neigh = s.end;
-			if (neigh.depth ==  Integer.MAX_VALUE) { 
-				neigh.visited = true;
-				start.visited = true;
-				recArtPts(neigh, 1, start, artPn);
-				subTree++;
-			}
-		}
-		
-		if (subTree > 1) 
-			artPn.add(start);
-		
-	}
-
-	private int recArtPts(Node node, int depth, Node from, Set<Node> set) {
-		node.depth = depth;
-		int reachBack = depth; 
-		for (Segment s: node.allNeighbours()) {
-			Node thisNeigh = s.end;
-			thisNeigh.visited = true;
-			if (thisNeigh.nodeID == from.nodeID) {
-				continue;
-			}
-			
-			if  (thisNeigh.depth <Integer.MAX_VALUE) {
-				reachBack = Math.min(thisNeigh.depth, reachBack);
-			} else { 
-				int childReach = recArtPts(thisNeigh, depth +1, node, set);
-				if (childReach  >= depth) {
-					set.add(node);
-				}
-				reachBack = Math.min(childReach, reachBack);
-			}
-		}
-		return  reachBack;
-
-	}*/
 
 }
\ No newline at end of file
@@ -0,0 +1,660 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Answers "how far is it to drive from here to there" in microseconds, for
+ * pricing trips, where only the distance is wanted and not the route. It is
+ * a hub labelling: every node gets an out label, a list of hubs it can drive
+ * to and how far each is, and an in label of hubs that can drive to it. The
+ * labels are built so that for any two nodes some hub on a shortest route
+ * between them is in both, so the distance is the smallest out distance plus
+ * in distance over the hubs they share.
+ *
+ * The labels are built by pruned landmark labelling. The nodes are taken in
+ * order of importance, most important first, and each one is searched from
+ * forwards and backwards with Dijkstra, adding it as a hub to the labels of
+ * the nodes it reaches. A search stops going past any node the labels built
+ * so far already give the right distance for, so after the first few hubs
+ * most searches are tiny. How small the labels end up depends on the order,
+ * and for roads betweenness (see Betweenness) is a good one: the main roads
+ * come first and cover most routes.
+ *
+ * Roads are followed only in the directions they can be driven, and roads
+ * that aren't for cars are left out. Distances are lengths in km, ignoring
+ * the traffic overlay, and are kept as whole numbers of UNITs so that they add
+ * up exactly.
+ *
+ * The labels are written to hub-labels.cache next to the data, and read back
+ * by mapping the file into memory, so a pricing service starts at once and
+ * several processes on one machine share the same pages. Each label is its
+ * hubs in increasing order, stored as the gap from the previous hub, and its
+ * distances, as varints, which is about half the size of plain ints. A query
+ * walks the two labels side by side, straight from the mapped file.
+ *
+ * Labels stay small when a few roads carry most routes, as in the real data.
+ * On a uniform grid they grow with the square root of the number of nodes,
+ * and so do the build time and memory. The file is mapped as one buffer, so
+ * it can be at most 2 GB; building labels that won't fit throws an
+ * IOException saying so.
+ *
+ * java HubLabels data-directory [queries]
+ *
+ */
+public class HubLabels {
+	public static final String CACHE_FILENAME = "hub-labels.cache";
+	// km per stored unit of distance: lengths are given to the 10 cm
+	private static final double UNIT = 1e-4;
+	private static final int MAGIC = 0x48554231;	// "HUB1"
+	// sources for the betweenness the nodes are ordered by
+	private static final int ORDER_SOURCES = 200;
+	private static final long ORDER_BUDGET = 20000;	// milliseconds
+	private static final int INFINITY = Integer.MAX_VALUE;
+	// the largest file that can be mapped as one buffer, and held as one array
+	// while it's written
+	private static final long MAX_BYTES = Integer.MAX_VALUE - 8;
+
+	private final MappedByteBuffer data;
+	private final int n;
+	// where the node IDs, the offsets of the labels, and the labels start
+	private final int idsAt, outAt, inAt, labelsAt;
+	private final NodeIdIndex ids;
+	public final String fingerprint;
+	public final long buildMillis, bytes;
+
+	private HubLabels(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();	// the mapping stays valid after the file is closed
+		}
+		bytes = data.capacity();
+		if (data.getInt(0) != MAGIC)
+			throw new IOException("not a hub label file: " + file);
+		int length = data.getInt(4);
+		byte[] fp = new byte[length];
+		for (int i = 0; i < length; i++)
+			fp[i] = data.get(8 + i);
+		fingerprint = new String(fp, StandardCharsets.UTF_8);
+		int at = 8 + length;
+		buildMillis = data.getLong(at);
+		n = data.getInt(at + 8);
+		idsAt = at + 12;
+		outAt = idsAt + 4 * n;
+		inAt = outAt + 4 * (n + 1);
+		labelsAt = inAt + 4 * (n + 1);
+
+		int[] nodeIDs = new int[n];
+		for (int v = 0; v < n; v++)
+			nodeIDs[v] = data.getInt(idsAt + 4 * v);
+		ids = new NodeIdIndex(nodeIDs);
+	}
+
+	/**
+	 * Maps an index file written by build, without needing the graph.
+	 */
+	public static HubLabels open(File file) throws IOException {
+		return new HubLabels(file);
+	}
+
+	/**
+	 * Returns the index for the given data files, mapping the cached one if
+	 * it is still current, otherwise building it and writing the cache. If
+	 * the data directory can't be written to, the index goes in a temporary
+	 * file instead.
+	 */
+	public static HubLabels loadOrBuild(Graph graph, File nodes, File roads, File segments) {
+		File cache = new File(nodes.getAbsoluteFile().getParentFile(), CACHE_FILENAME);
+		String fingerprint = ArticulationAnalysis.fingerprint(nodes, roads, segments);
+		if (cache.isFile()) {
+			try {
+				HubLabels labels = open(cache);
+				if (labels.fingerprint.equals(fingerprint) && labels.n == graph.nodeArray.length)
+					return labels;
+			} catch (IOException e) {
+				// build it again below
+			}
+		}
+		long begin = System.currentTimeMillis();
+		Builder builder = new Builder(graph);
+		builder.run();
+		long millis = System.currentTimeMillis() - begin;
+
+		File tmp = new File(cache.getPath() + ".tmp");
+		try {
+			write(graph, builder, millis, fingerprint, tmp);
+			cache.delete();
+			if (tmp.renameTo(cache))
+				return open(cache);
+			tmp.deleteOnExit();
+			return open(tmp);
+		} catch (IOException e) {
+			tmp.delete();
+		}
+		try {
+			File temp = File.createTempFile("hub-labels", ".cache");
+			temp.deleteOnExit();
+			write(graph, builder, millis, fingerprint, temp);
+			return open(temp);
+		} catch (IOException e) {
+			throw new RuntimeException("writing the hub labels failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Builds the labels for the graph and writes them to the file.
+	 */
+	public static void build(Graph graph, String fingerprint, File file) throws IOException {
+		long begin = System.currentTimeMillis();
+		Builder builder = new Builder(graph);
+		builder.run();
+		write(graph, builder, System.currentTimeMillis() - begin, fingerprint, file);
+	}
+
+	/**
+	 * Writes built labels to the file. Throws IOException, before writing
+	 * anything, if they would come to more than MAX_BYTES, since the file is
+	 * read by mapping it and the offsets into it are ints.
+	 */
+	private static void write(Graph graph, Builder builder, long millis, String fingerprint, File file)
+			throws IOException {
+		Node[] nodes = graph.nodeArray;
+		int n = nodes.length;
+		byte[] fp = fingerprint.getBytes(StandardCharsets.UTF_8);
+		long labelBytes = 0;
+		for (int v = 0; v < n; v++)
+			labelBytes += ByteArrayBuilder.length(builder.outLabel[v], builder.outSize[v])
+					+ ByteArrayBuilder.length(builder.inLabel[v], builder.inSize[v]);
+		long total = 4 + 4 + fp.length + 8 + 4 + 4L * n + 8L * (n + 1) + labelBytes;
+		if (total > MAX_BYTES)
+			throw new IOException(String.format("hub labels for %d nodes would take %d MB, more than the %d MB"
+					+ " a mapped file can hold", n, total >> 20, MAX_BYTES >> 20));
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(fp.length);
+			out.write(fp);
+			out.writeLong(millis);
+			out.writeInt(n);
+			for (Node node : nodes)
+				out.writeInt(node.nodeID);
+
+			// encode the labels first, to know where each one starts
+			ByteArrayBuilder bytes = new ByteArrayBuilder((int) labelBytes);
+			int[] outStart = new int[n + 1], inStart = new int[n + 1];
+			for (int v = 0; v < n; v++) {
+				outStart[v] = bytes.size;
+				bytes.label(builder.outLabel[v], builder.outSize[v]);
+			}
+			outStart[n] = bytes.size;
+			for (int v = 0; v < n; v++) {
+				inStart[v] = bytes.size;
+				bytes.label(builder.inLabel[v], builder.inSize[v]);
+			}
+			inStart[n] = bytes.size;
+			for (int offset : outStart)
+				out.writeInt(offset);
+			for (int offset : inStart)
+				out.writeInt(offset);
+			out.write(bytes.bytes, 0, bytes.size);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Returns the driving distance in km between the nodes, or infinity if
+	 * there's no way from one to the other.
+	 */
+	public double distance(Node from, Node to) {
+		return distance(from.index, to.index);
+	}
+
+	/**
+	 * Returns the driving distance in km between the nodes with the given IDs
+	 * from the data files, or infinity if there's no way from one to the
+	 * other. Throws IllegalArgumentException for an ID that isn't a node.
+	 */
+	public double distanceByID(int fromID, int toID) {
+		int from = ids.get(fromID), to = ids.get(toID);
+		if (from < 0 || to < 0)
+			throw new IllegalArgumentException("no node " + (from < 0 ? fromID : toID));
+		return distance(from, to);
+	}
+
+	private double distance(int from, int to) {
+		Reader a = new Reader(labelsAt + data.getInt(outAt + 4 * from), labelsAt + data.getInt(outAt + 4 * from + 4));
+		Reader b = new Reader(labelsAt + data.getInt(inAt + 4 * to), labelsAt + data.getInt(inAt + 4 * to + 4));
+		long best = Long.MAX_VALUE;
+		boolean more = a.advance() && b.advance();
+		while (more) {
+			if (a.hub == b.hub) {
+				best = Math.min(best, (long) a.dist + b.dist);
+				more = a.advance() && b.advance();
+			} else if (a.hub < b.hub) {
+				more = a.advance();
+			} else {
+				more = b.advance();
+			}
+		}
+		return best == Long.MAX_VALUE ? Double.POSITIVE_INFINITY : best * UNIT;
+	}
+
+	/**
+	 * Returns the number of nodes labelled.
+	 */
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * Returns the average number of hubs in a label, in and out together.
+	 */
+	public double averageLabel() {
+		long hubs = 0;
+		for (int v = 0; v < n; v++) {
+			hubs += count(outAt, v) + count(inAt, v);
+		}
+		return n == 0 ? 0 : (double) hubs / n;
+	}
+
+	private int count(int offsets, int v) {
+		Reader r = new Reader(labelsAt + data.getInt(offsets + 4 * v), labelsAt + data.getInt(offsets + 4 * v + 4));
+		int count = 0;
+		while (r.advance())
+			count++;
+		return count;
+	}
+
+	public String toString() {
+		return String.format("hub labels for %d nodes, %.1f hubs a node, %.1f MB, built in %d ms", n,
+				averageLabel(), bytes / (1024.0 * 1024.0), buildMillis);
+	}
+
+	/**
+	 * Walks one label in the mapped file. It never leaves the method that
+	 * makes it, so escape analysis keeps it off the heap.
+	 */
+	private class Reader {
+		private final ByteBuffer buf = data;
+		private int at;
+		private final int end;
+		int hub = 0, dist;
+
+		Reader(int at, int end) {
+			this.at = at;
+			this.end = end;
+		}
+
+		/**
+		 * Moves on to the next hub, returning false at the end of the label.
+		 */
+		boolean advance() {
+			if (at >= end)
+				return false;
+			hub += next();
+			dist = next();
+			return true;
+		}
+
+		private int next() {
+			int v = 0;
+			for (int shift = 0;; shift += 7) {
+				byte b = buf.get(at++);
+				v |= (b & 0x7f) << shift;
+				if (b >= 0)
+					return v;
+			}
+		}
+	}
+
+	/**
+	 * A byte array the labels are encoded into, made the size they'll take.
+	 */
+	private static class ByteArrayBuilder {
+		final byte[] bytes;
+		int size;
+
+		ByteArrayBuilder(int capacity) {
+			bytes = new byte[capacity];
+		}
+
+		/**
+		 * Returns how many bytes label() will append for the label.
+		 */
+		static long length(int[] label, int entries) {
+			long length = 0;
+			int previous = 0;
+			for (int i = 0; i < entries; i++) {
+				length += varintLength(label[2 * i] - previous) + varintLength(label[2 * i + 1]);
+				previous = label[2 * i];
+			}
+			return length;
+		}
+
+		private static int varintLength(int v) {
+			int length = 1;
+			while ((v & ~0x7f) != 0) {
+				length++;
+				v >>>= 7;
+			}
+			return length;
+		}
+
+		/**
+		 * Appends a label held as hub, distance pairs, with each hub as the
+		 * gap from the one before.
+		 */
+		void label(int[] label, int entries) {
+			int previous = 0;
+			for (int i = 0; i < entries; i++) {
+				varint(label[2 * i] - previous);
+				varint(label[2 * i + 1]);
+				previous = label[2 * i];
+			}
+		}
+
+		private void varint(int v) {
+			while ((v & ~0x7f) != 0) {
+				bytes[size++] = (byte) ((v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			bytes[size++] = (byte) v;
+		}
+	}
+
+	/**
+	 * Pruned landmark labelling over the graph held as primitive arrays.
+	 * Hubs are numbered by their place in the order, so each label is built
+	 * already sorted by hub.
+	 */
+	private static class Builder {
+		private final Graph graph;
+		private final int n;
+		// segments out of v are out[outStart[v]] .. out[outStart[v + 1] - 1],
+		// and segments into v likewise with in and inStart, with lengths in
+		// UNITs
+		private final int[] outStart, out, outLength, inStart, in, inLength;
+		// labels by node index, as hub, distance pairs
+		final int[][] outLabel, inLabel;
+		final int[] outSize, inSize;
+
+		// for the search: distances by node index, the nodes it touched,
+		// and the label of the hub being added by hub number
+		private final int[] dist, touched, hubDist;
+		private int touchedCount;
+		private final int[] heap, pos;
+		private int size;
+
+		Builder(Graph graph) {
+			this.graph = graph;
+			Node[] nodes = graph.nodeArray;
+			n = nodes.length;
+			outStart = new int[n + 1];
+			inStart = new int[n + 1];
+			for (Node node : nodes) {
+				for (Segment s : node.outNeighbours) {
+					if (s.road.notForCar == 1)
+						continue;
+					outStart[s.start.index + 1]++;
+					inStart[s.end.index + 1]++;
+				}
+			}
+			for (int v = 0; v < n; v++) {
+				outStart[v + 1] += outStart[v];
+				inStart[v + 1] += inStart[v];
+			}
+			out = new int[outStart[n]];
+			in = new int[inStart[n]];
+			outLength = new int[out.length];
+			inLength = new int[in.length];
+			int[] outAt = Arrays.copyOf(outStart, n), inAt = Arrays.copyOf(inStart, n);
+			for (Node node : nodes) {
+				for (Segment s : node.outNeighbours) {
+					if (s.road.notForCar == 1)
+						continue;
+					int u = s.start.index, v = s.end.index, length = (int) Math.round(s.length / UNIT);
+					out[outAt[u]] = v;
+					outLength[outAt[u]++] = length;
+					in[inAt[v]] = u;
+					inLength[inAt[v]++] = length;
+				}
+			}
+
+			outLabel = new int[n][];
+			inLabel = new int[n][];
+			outSize = new int[n];
+			inSize = new int[n];
+			dist = new int[n];
+			touched = new int[n];
+			hubDist = new int[n];
+			heap = new int[n];
+			pos = new int[n];
+			Arrays.fill(dist, INFINITY);
+			Arrays.fill(hubDist, INFINITY);
+			Arrays.fill(pos, -1);
+		}
+
+		void run() {
+			int[] order = order();
+			for (int rank = 0; rank < n; rank++) {
+				int v = order[rank];
+				// forwards: v is an out hub of itself and an in hub of what
+				// it reaches. then backwards, the other way round.
+				search(v, rank, out, outStart, outLength, outLabel, outSize, inLabel, inSize);
+				search(v, rank, in, inStart, inLength, inLabel, inSize, outLabel, outSize);
+			}
+		}
+
+		/**
+		 * Returns the node indices most important first: by estimated
+		 * betweenness, then by number of neighbours.
+		 */
+		private int[] order() {
+			Betweenness b = Betweenness.compute(graph, ORDER_SOURCES, ORDER_BUDGET);
+			Node[] nodes = graph.nodeArray;
+			Integer[] order = new Integer[n];
+			for (int v = 0; v < n; v++)
+				order[v] = v;
+			Arrays.sort(order, (x, y) -> {
+				int c = Double.compare(b.score(nodes[y]), b.score(nodes[x]));
+				if (c != 0)
+					return c;
+				return Integer.compare(outStart[y + 1] - outStart[y] + inStart[y + 1] - inStart[y],
+						outStart[x + 1] - outStart[x] + inStart[x + 1] - inStart[x]);
+			});
+			int[] result = new int[n];
+			for (int v = 0; v < n; v++)
+				result[v] = order[v];
+			return result;
+		}
+
+		/**
+		 * Searches from hub v along the given segments, adding it to the
+		 * reached nodes' labels unless the labels so far already give a
+		 * distance as short. own is v's label on the side it is searching
+		 * from, and reached the labels of the nodes found.
+		 */
+		private void search(int v, int rank, int[] adj, int[] adjStart, int[] adjLength, int[][] own,
+				int[] ownSize, int[][] reached, int[] reachedSize) {
+			Metrics.Query q = Metrics.ENABLED ? Metrics.start("hub-labels") : null;
+			long relaxed = 0, settled = 0;
+			for (int i = 0; i < ownSize[v]; i++)
+				hubDist[own[v][2 * i]] = own[v][2 * i + 1];
+
+			dist[v] = 0;
+			touched[touchedCount++] = v;
+			push(v);
+			while (size > 0) {
+				int u = pop();
+				int d = dist[u];
+				settled++;
+				if (covered(reached[u], reachedSize[u], d))
+					continue;
+				add(reached, reachedSize, u, rank, d);
+				for (int e = adjStart[u]; e < adjStart[u + 1]; e++) {
+					int w = adj[e];
+					int nd = d + adjLength[e];
+					relaxed++;
+					if (nd < dist[w]) {
+						if (dist[w] == INFINITY)
+							touched[touchedCount++] = w;
+						dist[w] = nd;
+						if (pos[w] < 0)
+							push(w);
+						else
+							siftUp(pos[w]);
+					}
+				}
+			}
+
+			for (int i = 0; i < touchedCount; i++)
+				dist[touched[i]] = INFINITY;
+			touchedCount = 0;
+			for (int i = 0; i < ownSize[v]; i++)
+				hubDist[own[v][2 * i]] = INFINITY;
+			if (Metrics.ENABLED)
+				q.finish(settled, relaxed, 2 * settled);
+		}
+
+		/**
+		 * Returns true if a hub already in the label, together with the
+		 * label of the hub being added, gives a distance no longer than d.
+		 */
+		private boolean covered(int[] label, int entries, int d) {
+			for (int i = 0; i < entries; i++) {
+				int h = hubDist[label[2 * i]];
+				if (h != INFINITY && (long) h + label[2 * i + 1] <= d)
+					return true;
+			}
+			return false;
+		}
+
+		private static void add(int[][] labels, int[] sizes, int u, int hub, int d) {
+			int[] label = labels[u];
+			if (label == null) {
+				label = labels[u] = new int[8];
+			} else if (2 * sizes[u] == label.length) {
+				// grow by half, keeping whole pairs, since the labels are most
+				// of the memory the build takes
+				label = labels[u] = Arrays.copyOf(label, label.length + (label.length / 2 & ~1));
+			}
+			label[2 * sizes[u]] = hub;
+			label[2 * sizes[u] + 1] = d;
+			sizes[u]++;
+		}
+
+		private void push(int v) {
+			heap[size] = v;
+			pos[v] = size++;
+			siftUp(pos[v]);
+		}
+
+		private int pop() {
+			int top = heap[0];
+			pos[top] = -1;
+			size--;
+			if (size > 0) {
+				heap[0] = heap[size];
+				pos[heap[0]] = 0;
+				siftDown(0);
+			}
+			return top;
+		}
+
+		private void siftUp(int i) {
+			int v = heap[i];
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (dist[heap[parent]] <= dist[v])
+					break;
+				heap[i] = heap[parent];
+				pos[heap[i]] = i;
+				i = parent;
+			}
+			heap[i] = v;
+			pos[v] = i;
+		}
+
+		private void siftDown(int i) {
+			int v = heap[i];
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && dist[heap[child + 1]] < dist[heap[child]])
+					child++;
+				if (dist[heap[child]] >= dist[v])
+					break;
+				heap[i] = heap[child];
+				pos[heap[i]] = i;
+				i = child;
+			}
+			heap[i] = v;
+			pos[v] = i;
+		}
+	}
+
+	/**
+	 * Builds or maps the index for a data set, reports its size and how long
+	 * it took to build, then times random distance queries and checks a few
+	 * of them against Dijkstra.
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("usage: java HubLabels data-directory [queries]");
+			return;
+		}
+		File dir = new File(args[0]);
+		File nodes = new File(dir, GUI.NODES_FILENAME), roads = new File(dir, GUI.ROADS_FILENAME),
+				segments = new File(dir, GUI.SEGS_FILENAME);
+		Graph graph = new Graph(nodes, roads, segments, null);
+		int queries = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+		long begin = System.currentTimeMillis();
+		HubLabels labels = loadOrBuild(graph, nodes, roads, segments);
+		System.out.println(labels + ", ready in " + (System.currentTimeMillis() - begin) + " ms");
+
+		Node[] all = graph.nodeArray;
+		Random random = new Random(Benchmark.SEED);
+		int[] from = new int[queries], to = new int[queries];
+		for (int i = 0; i < queries; i++) {
+			from[i] = random.nextInt(all.length);
+			to[i] = random.nextInt(all.length);
+		}
+		for (int round = 0; round < 2; round++) {	// the first round warms up the JIT
+			long start = System.nanoTime();
+			double sum = 0;
+			for (int i = 0; i < queries; i++)
+				sum += labels.distance(from[i], to[i]);
+			Benchmark.sink += (long) sum;
+			long nanos = System.nanoTime() - start;
+			if (round == 1)
+				System.out.printf("%d queries, %.2f us each%n", queries, nanos / 1000.0 / queries);
+		}
+
+		// the same distances as Dijkstra on the lengths of the roads for cars
+		Dijkstra dijkstra = new Dijkstra(graph);
+		Dijkstra.Weight lengths = s -> s.road.notForCar == 1 ? Double.POSITIVE_INFINITY : s.length;
+		int checks = Math.min(queries, 100), wrong = 0;
+		for (int i = 0; i < checks; i++) {
+			dijkstra.run(all[from[i]], all[to[i]], Double.POSITIVE_INFINITY, lengths);
+			double expected = dijkstra.distance(all[to[i]]);
+			double got = labels.distance(from[i], to[i]);
+			if (expected == Double.POSITIVE_INFINITY ? got != expected : Math.abs(expected - got) > 1e-3)
+				wrong++;
+		}
+		System.out.println(checks - wrong + " of " + checks + " checked against Dijkstra");
+	}
+}
@@ -0,0 +1,157 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The part of the road network that can be reached from one or more stations
+ * within a given distance (in km) or driving time (in minutes, at the speed
+ * limit). This is for planning ambulance coverage, so only roads for cars are
+ * used, and closed segments and changed costs are respected.
+ *
+ * With several stations, each one is searched from separately on its own
+ * thread, and every node is covered by whichever station gets there first.
+ *
+ */
+public class Isochrone {
+	public static final Color COLOUR = new Color(255, 140, 0, 110);
+
+	public final double limit;
+	public final boolean minutes;
+	// by Node.index: the distance or time from the nearest station, or
+	// infinity if it's out of reach, and which station that is
+	private final double[] cost;
+	private final Node[] station;
+	private final Node[] nodes;
+	private final List<Node> reachable;
+
+	private Isochrone(Graph graph, double limit, boolean minutes, double[] cost, Node[] station) {
+		this.limit = limit;
+		this.minutes = minutes;
+		this.cost = cost;
+		this.station = station;
+		this.nodes = graph.nodeArray;
+		this.reachable = new ArrayList<>();
+		for (int v = 0; v < cost.length; v++)
+			if (cost[v] <= limit)
+				reachable.add(nodes[v]);
+	}
+
+	/**
+	 * Returns everything within limit km of the station, or limit minutes if
+	 * minutes is set.
+	 */
+	public static Isochrone compute(Graph graph, Node station, double limit, boolean minutes) {
+		List<Node> one = new ArrayList<>();
+		one.add(station);
+		return computeAll(graph, one, limit, minutes);
+	}
+
+	/**
+	 * Returns everything within reach of any of the stations, searching from
+	 * each of them in parallel.
+	 */
+	public static Isochrone computeAll(Graph graph, List<Node> stations, double limit, boolean minutes) {
+		Dijkstra.Weight weight = weight(graph.overlay(), minutes);
+		ThreadLocal<Dijkstra> searches = ThreadLocal.withInitial(() -> new Dijkstra(graph));
+
+		// each search hands back just what it reached, so only one graph
+		// sized array is made per thread rather than per station
+		List<Reached> all = stations.parallelStream().map(s -> {
+			Dijkstra dijkstra = searches.get();
+			dijkstra.run(s, limit, weight);
+			return new Reached(s, dijkstra);
+		}).collect(Collectors.toList());
+
+		int n = graph.nodeArray.length;
+		double[] cost = new double[n];
+		Node[] station = new Node[n];
+		Arrays.fill(cost, Double.POSITIVE_INFINITY);
+		for (Reached r : all) {
+			for (int i = 0; i < r.nodes.length; i++) {
+				if (r.cost[i] < cost[r.nodes[i]]) {
+					cost[r.nodes[i]] = r.cost[i];
+					station[r.nodes[i]] = r.station;
+				}
+			}
+		}
+		return new Isochrone(graph, limit, minutes, cost, station);
+	}
+
+	/**
+	 * Returns the cost of a segment: its length, or the minutes it takes at
+	 * the speed limit. Roads that aren't for cars can't be used.
+	 */
+	static Dijkstra.Weight weight(TrafficOverlay costs, boolean minutes) {
+		return s -> {
+			if (s.road.notForCar == 1)
+				return Double.POSITIVE_INFINITY;
+			double km = costs.cost(s);
+			return minutes ? km / s.road.speedLimit() * 60 : km;
+		};
+	}
+
+	/**
+	 * Returns every node within reach.
+	 */
+	public List<Node> reachable() {
+		return reachable;
+	}
+
+	/**
+	 * Returns the distance or time to the node from the nearest station, or
+	 * infinity if it is out of reach.
+	 */
+	public double cost(Node node) {
+		return cost[node.index];
+	}
+
+	/**
+	 * Returns the station that reaches the node first, or null if none do.
+	 */
+	public Node stationOf(Node node) {
+		return station[node.index];
+	}
+
+	/**
+	 * Shades every segment that can be driven along all the way within reach.
+	 */
+	public void draw(Graphics2D g, Location origin, double scale) {
+		g.setColor(COLOUR);
+		g.setStroke(new BasicStroke(5));
+		for (Node n : reachable) {
+			for (Segment s : n.outNeighbours) {
+				if (cost[s.end.index] <= limit)
+					s.draw(g, origin, scale);
+			}
+		}
+	}
+
+	public String toString() {
+		return String.format("%d intersections within %.1f %s", reachable.size(), limit,
+				minutes ? "minutes" : "km");
+	}
+
+	/**
+	 * The nodes one station's search reached, and their costs.
+	 */
+	private static class Reached {
+		final Node station;
+		final int[] nodes;
+		final double[] cost;
+
+		Reached(Node station, Dijkstra dijkstra) {
+			this.station = station;
+			List<Node> reached = dijkstra.reached();
+			nodes = new int[reached.size()];
+			cost = new double[reached.size()];
+			for (int i = 0; i < nodes.length; i++) {
+				nodes[i] = reached.get(i).index;
+				cost[i] = dijkstra.distance(reached.get(i));
+			}
+		}
+	}
+}
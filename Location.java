@@ -78,6 +78,22 @@ public class Location {
 		return new Location(x, y);
 	}
 
+	/**
+	 * Returns the latitude of this Location. This is the opposite of
+	 * newFromLatLon.
+	 */
+	public double latitude() {
+		return y / SCALE_LAT + CENTRE_LAT;
+	}
+
+	/**
+	 * Returns the longitude of this Location.
+	 */
+	public double longitude() {
+		return x / (SCALE_LAT * Math.cos((latitude() - CENTRE_LAT) * DEG_TO_RAD))
+				+ CENTRE_LON;
+	}
+
 	// ------------------------------------------
 	// some utility methods for Location objects
 	// ------------------------------------------
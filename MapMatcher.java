@@ -0,0 +1,406 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snaps a GPS trace onto the roads it was most likely driven along, with a
+ * hidden Markov model. The hidden states for each fix are the segments near
+ * it (from the SegmentIndex). A state is likelier the closer the fix is to it,
+ * and a move between the states of two fixes is likelier the closer the
+ * driving distance between them is to the straight line distance between the
+ * fixes. The driving distances come from small bounded Dijkstra searches over
+ * the roads cars can use, avoiding the graph's closures. The Viterbi
+ * algorithm then picks the most likely sequence of states.
+ *
+ * Fixes are fed in one at a time with add(). A fix's match is only certain
+ * once every possible path through the newest fix agrees on it, so add()
+ * returns whatever has become certain, and only the undecided fixes are kept.
+ * If they don't agree for MAX_WINDOW fixes, the oldest is decided anyway
+ * from the best path so far, so memory stays bounded however long the trace.
+ *
+ * Run on its own, it matches a trace file of "latitude longitude" lines and
+ * reports how many points per second it got through:
+ *
+ * java MapMatcher data-directory trace-file output-file
+ *
+ */
+public class MapMatcher {
+	// standard deviation of the GPS error, in km
+	public static final double SIGMA = 0.01;
+	// how quickly a route becomes less likely as its length strays from the
+	// straight line distance between the fixes, in km
+	public static final double BETA = 0.05;
+	// how far from a fix to look for segments, and how many to keep
+	public static final double RADIUS = 0.05;
+	public static final int MAX_CANDIDATES = 8;
+	// routes more than this much longer than the straight line between two
+	// fixes aren't considered, in km
+	public static final double MAX_DETOUR = 1.0;
+	// most fixes kept waiting to be decided
+	public static final int MAX_WINDOW = 64;
+
+	private final Graph graph;
+	private final SegmentIndex index;
+	private final Dijkstra dijkstra;
+
+	// the undecided fixes, oldest first
+	private final List<Step> window = new ArrayList<>();
+	private int nextSeq;
+	private long points, nanos;
+
+	public MapMatcher(Graph graph, SegmentIndex index) {
+		this.graph = graph;
+		this.index = index;
+		this.dijkstra = new Dijkstra(graph);
+	}
+
+	/**
+	 * Adds the next fix of the trace, and returns the matches of any fixes
+	 * that are now decided, in order.
+	 */
+	public List<Match> add(Location fix) {
+		long begin = System.nanoTime();
+		List<Match> decided = new ArrayList<>();
+		Step step = new Step(nextSeq++, fix, candidates(fix));
+
+		if (step.candidates.length == 0) {
+			// nothing nearby, so this breaks the trace in two
+			flush(decided);
+			decided.add(new Match(step.seq, fix, null));
+		} else {
+			if (!window.isEmpty() && !transition(window.get(window.size() - 1), step))
+				flush(decided);	// no way to get here from the last fix
+			window.add(step);
+			decide(decided);
+		}
+
+		points++;
+		nanos += System.nanoTime() - begin;
+		return decided;
+	}
+
+	/**
+	 * Ends the trace, returning the matches of every fix still undecided.
+	 */
+	public List<Match> finish() {
+		List<Match> decided = new ArrayList<>();
+		flush(decided);
+		return decided;
+	}
+
+	/**
+	 * Returns how many fixes per second have been matched so far.
+	 */
+	public double pointsPerSecond() {
+		return nanos == 0 ? 0 : points * 1e9 / nanos;
+	}
+
+	public long points() {
+		return points;
+	}
+
+	private SegmentIndex.SegmentMatch[] candidates(Location fix) {
+		List<SegmentIndex.SegmentMatch> near = index.within(fix, RADIUS);
+		int n = Math.min(near.size(), MAX_CANDIDATES);
+		return near.subList(0, n).toArray(new SegmentIndex.SegmentMatch[n]);
+	}
+
+	/**
+	 * Scores every state of step by the best way into it from the states of
+	 * prev. Returns false if none of them can be reached.
+	 */
+	private boolean transition(Step prev, Step step) {
+		double straight = prev.fix.distance(step.fix);
+		double limit = straight + MAX_DETOUR;
+		TrafficOverlay costs = graph.overlay();
+		// distances from each node prev's states can leave by, to every node
+		// step's states can be entered by
+		Map<Node, Map<Node, Double>> routes = new HashMap<>();
+
+		// worked out aside, so a step nothing can reach keeps the fresh start
+		// it was made with
+		double[] scores = new double[step.candidates.length];
+		int[] backs = new int[step.candidates.length];
+		boolean any = false;
+		for (int j = 0; j < step.candidates.length; j++) {
+			SegmentIndex.SegmentMatch b = step.candidates[j];
+			double best = Double.NEGATIVE_INFINITY;
+			int from = -1;
+			for (int i = 0; i < prev.candidates.length; i++) {
+				if (prev.score[i] == Double.NEGATIVE_INFINITY)
+					continue;
+				double route = route(prev.candidates[i], b, limit, costs, routes);
+				if (route > limit)
+					continue;
+				double score = prev.score[i] - Math.abs(route - straight) / BETA;
+				if (score > best) {
+					best = score;
+					from = i;
+				}
+			}
+			scores[j] = best + emission(b);
+			backs[j] = from;
+			any |= from >= 0;
+		}
+		if (!any)
+			return false;
+		System.arraycopy(scores, 0, step.score, 0, scores.length);
+		System.arraycopy(backs, 0, step.back, 0, backs.length);
+
+		// keep the scores from drifting off over a long trace
+		double max = Double.NEGATIVE_INFINITY;
+		for (double s : step.score)
+			max = Math.max(max, s);
+		for (int j = 0; j < step.score.length; j++)
+			step.score[j] -= max;
+		return true;
+	}
+
+	private static double emission(SegmentIndex.SegmentMatch m) {
+		double z = m.distance / SIGMA;
+		return -0.5 * z * z;
+	}
+
+	/**
+	 * Returns the driving distance from the point of a to the point of b, or
+	 * infinity if it's more than limit.
+	 */
+	private double route(SegmentIndex.SegmentMatch a, SegmentIndex.SegmentMatch b, double limit,
+			TrafficOverlay costs, Map<Node, Map<Node, Double>> routes) {
+		double oa = a.offset(), ob = b.offset();
+		// along the same segment, unless it's one way and b is behind a, in
+		// which case it's out by the end and round again like any other
+		boolean aBoth = a.segment.road.oneWay != 1, bBoth = b.segment.road.oneWay != 1;
+		if (a.segment == b.segment && (aBoth || ob >= oa))
+			return Math.abs(ob - oa);
+
+		// leave a by its end, or its start too if it's two way, and enter b
+		// the same way
+		double best = Double.POSITIVE_INFINITY;
+		for (int x = 0; x < (aBoth ? 2 : 1); x++) {
+			Node exit = x == 0 ? a.segment.end : a.segment.start;
+			double out = x == 0 ? a.segment.length - oa : oa;
+			for (int y = 0; y < (bBoth ? 2 : 1); y++) {
+				Node entry = y == 0 ? b.segment.start : b.segment.end;
+				double in = y == 0 ? ob : b.segment.length - ob;
+				best = Math.min(best, out + distance(exit, entry, limit, costs, routes) + in);
+			}
+		}
+		return best;
+	}
+
+	private double distance(Node from, Node to, double limit, TrafficOverlay costs,
+			Map<Node, Map<Node, Double>> routes) {
+		if (from == to)
+			return 0;
+		Map<Node, Double> reached = routes.get(from);
+		if (reached == null) {
+			// driving distance by car: cost changes are about time, not
+			// distance, so only the closures count
+			dijkstra.run(from, limit, s -> s.road.notForCar == 1 || costs.isClosed(s)
+					? Double.POSITIVE_INFINITY : s.length);
+			reached = new HashMap<>();
+			for (Node n : dijkstra.reached())
+				reached.put(n, dijkstra.distance(n));
+			routes.put(from, reached);
+		}
+		Double d = reached.get(to);
+		return d == null ? Double.POSITIVE_INFINITY : d;
+	}
+
+	/**
+	 * Decides every fix that all the paths through the newest one agree on,
+	 * or the oldest one if the window is full.
+	 */
+	private void decide(List<Match> decided) {
+		Step last = window.get(window.size() - 1);
+		boolean[] alive = new boolean[last.candidates.length];
+		for (int j = 0; j < alive.length; j++)
+			alive[j] = last.score[j] > Double.NEGATIVE_INFINITY;
+
+		// walk back until the surviving paths all go through one state
+		for (int k = window.size() - 1; k > 0; k--) {
+			Step step = window.get(k);
+			boolean[] before = new boolean[window.get(k - 1).candidates.length];
+			int count = 0, state = -1;
+			for (int j = 0; j < alive.length; j++) {
+				if (alive[j] && !before[step.back[j]]) {
+					before[step.back[j]] = true;
+					count++;
+					state = step.back[j];
+				}
+			}
+			if (count == 1) {
+				emit(k - 1, state, decided);
+				return;
+			}
+			alive = before;
+		}
+
+		if (window.size() > MAX_WINDOW) {
+			int[] path = bestPath();
+			decided.add(window.get(0).match(path[0]));
+			window.remove(0);
+		}
+	}
+
+	/**
+	 * Decides the fixes up to window position k, going back from the given
+	 * state at k, and drops them from the window.
+	 */
+	private void emit(int k, int state, List<Match> decided) {
+		Match[] matches = new Match[k + 1];
+		for (int i = k; i >= 0; i--) {
+			Step step = window.get(i);
+			matches[i] = step.match(state);
+			state = step.back[state];
+		}
+		for (Match m : matches)
+			decided.add(m);
+		window.subList(0, k + 1).clear();
+	}
+
+	/**
+	 * Decides every fix in the window by the best path to the newest one.
+	 */
+	private void flush(List<Match> decided) {
+		if (window.isEmpty())
+			return;
+		int[] path = bestPath();
+		for (int i = 0; i < window.size(); i++)
+			decided.add(window.get(i).match(path[i]));
+		window.clear();
+	}
+
+	/**
+	 * Returns the state of each fix in the window along the most likely path.
+	 */
+	private int[] bestPath() {
+		int[] path = new int[window.size()];
+		Step last = window.get(window.size() - 1);
+		int state = 0;
+		for (int j = 1; j < last.score.length; j++)
+			if (last.score[j] > last.score[state])
+				state = j;
+		for (int i = window.size() - 1; i >= 0; i--) {
+			path[i] = state;
+			state = window.get(i).back[state];
+		}
+		return path;
+	}
+
+	/**
+	 * One fix of the trace and its possible states, with the score of the best
+	 * path into each and the state of the previous fix that path came from.
+	 */
+	private static class Step {
+		final int seq;
+		final Location fix;
+		final SegmentIndex.SegmentMatch[] candidates;
+		final double[] score;
+		final int[] back;
+
+		Step(int seq, Location fix, SegmentIndex.SegmentMatch[] candidates) {
+			this.seq = seq;
+			this.fix = fix;
+			this.candidates = candidates;
+			this.score = new double[candidates.length];
+			this.back = new int[candidates.length];
+			// until a previous fix says otherwise, start a fresh path here
+			for (int j = 0; j < candidates.length; j++) {
+				score[j] = emission(candidates[j]);
+				back[j] = -1;
+			}
+		}
+
+		Match match(int state) {
+			return new Match(seq, fix, state < 0 ? null : candidates[state]);
+		}
+	}
+
+	/**
+	 * Where a fix was matched to: its position in the trace, and the segment
+	 * and point on it, or null if it couldn't be matched.
+	 */
+	public static class Match {
+		public final int seq;
+		public final Location fix;
+		public final SegmentIndex.SegmentMatch match;
+
+		Match(int seq, Location fix, SegmentIndex.SegmentMatch match) {
+			this.seq = seq;
+			this.fix = fix;
+			this.match = match;
+		}
+
+		public String toString() {
+			return seq + ": " + (match == null ? "unmatched" : match.toString());
+		}
+	}
+
+	/**
+	 * Matches every "latitude longitude" line of in, writing a tab separated
+	 * line to out for each: the fix, then the road ID, road name, and the
+	 * matched latitude and longitude, or "-" if it couldn't be matched.
+	 * Returns how many were matched.
+	 */
+	public int matchAll(BufferedReader in, Writer out) throws IOException {
+		int matched = 0;
+		String line;
+		while ((line = in.readLine()) != null) {
+			String[] parts = line.trim().split("[\\s,]+");
+			if (parts.length < 2)
+				continue;
+			Location fix = Location.newFromLatLon(Double.parseDouble(parts[0]),
+					Double.parseDouble(parts[1]));
+			for (Match m : add(fix))
+				matched += write(m, out);
+		}
+		for (Match m : finish())
+			matched += write(m, out);
+		return matched;
+	}
+
+	private static int write(Match m, Writer out) throws IOException {
+		out.write(String.format("%.6f\t%.6f", m.fix.latitude(), m.fix.longitude()));
+		if (m.match == null) {
+			out.write("\t-\n");
+			return 0;
+		}
+		Road road = m.match.segment.road;
+		out.write(String.format("\t%d\t%s\t%.6f\t%.6f\n", road.roadID, road.name,
+				m.match.point.latitude(), m.match.point.longitude()));
+		return 1;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			System.err.println("usage: java MapMatcher data-directory trace-file output-file");
+			return;
+		}
+		File dir = new File(args[0]);
+		Graph graph = new Graph(new File(dir, GUI.NODES_FILENAME),
+				new File(dir, GUI.ROADS_FILENAME), new File(dir, GUI.SEGS_FILENAME), null);
+		MapMatcher matcher = new MapMatcher(graph, new SegmentIndex(graph.segments));
+
+		BufferedReader in = new BufferedReader(new FileReader(args[1]));
+		BufferedWriter out = new BufferedWriter(new FileWriter(args[2]));
+		int matched;
+		try {
+			matched = matcher.matchAll(in, out);
+		} finally {
+			in.close();
+			out.close();
+		}
+		System.out.printf("matched %d of %d points, %.0f points per second%n", matched,
+				matcher.points(), matcher.pointsPerSecond());
+	}
+}
@@ -5,12 +5,15 @@ import java.awt.Point;
 import java.awt.event.MouseEvent;
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.swing.SwingWorker;
 
 public class Mapper extends GUI {
 	public static final Color NODE_COLOUR = new Color(77, 113, 255);
@@ -33,6 +36,27 @@ public class Mapper extends GUI {
 	// how far away from a node you can click before it isn't counted.
 	public static final double MAX_CLICKED_DISTANCE = 0.15;
 
+	// how many typing mistakes a road name search will forgive; short
+	// queries get fewer, or almost anything would match them.
+	public static final int MAX_TYPOS = 2, SHORT_QUERY = 4;
+
+	// how many routes to offer between two intersections, counting the best
+	public static final int MAX_ROUTES = 3;
+
+	// a reachability query: "within <number> km|min [of <addresses>]"
+	private static final Pattern WITHIN = Pattern.compile(
+			"within\\s+([0-9]+(?:\\.[0-9]+)?)\\s*(km|min\\w*)(?:\\s+of\\s+(.+))?", Pattern.CASE_INSENSITIVE);
+	// a multi-stop tour: "tour <address>; <address>; ...", starting and
+	// ending at the first
+	private static final Pattern TOUR = Pattern.compile("tour\\s+(.+)", Pattern.CASE_INSENSITIVE);
+	// a departure time on the end of a route query: "... at <hours>:<minutes>"
+	private static final Pattern LEAVING = Pattern.compile(
+			"(.+?)\\s+at\\s+([0-9]{1,2})[:.]([0-9]{2})", Pattern.CASE_INSENSITIVE);
+	// the busiest intersections: "busiest [<number of sources>]"
+	private static final Pattern BUSIEST = Pattern.compile("busiest(?:\\s+([0-9]+))?", Pattern.CASE_INSENSITIVE);
+	// how many of the busiest intersections to list
+	private static final int BUSIEST_LISTED = 10;
+
 	// these two define the 'view' of the program, ie. where you're looking and
 	// how zoomed in you are.
 	private Location origin;
@@ -41,6 +65,11 @@ public class Mapper extends GUI {
 	// our data structures.
 	private Graph graph;
 	private Trie trie;
+	private StreetIndex streets;
+	private Geocoder geocoder;
+	private SegmentIndex segmentIndex;
+	// the files the graph was loaded from, which the caches are keyed on
+	private File nodesFile, roadsFile, segmentsFile;
 	
 	//two selected nodes
 	Node start = null;
@@ -52,6 +81,22 @@ public class Mapper extends GUI {
 	//the map of road lengths in path, indexed by the road name
 	Map<String,Double> roadsAlongPath;
 
+	//the best route along the path, and other good routes between start and goal
+	Route route;
+	List<Route> routes = new ArrayList<>();
+
+	//when to leave, in minutes since midnight, for the fastest route at that
+	//time of day; -1 for the shortest route
+	double departure = -1;
+
+	//recent routes, so going between the same places again is instant
+	private RouteCache<Route> routeCache;
+	private RouteCache<List<Route>> alternativesCache;
+	private RouteCache<CapacityAnalysis> capacityCache;
+
+	//total road capacity between start and goal
+	CapacityAnalysis capacity;
+
 	//the list of articulation points
 	Set<Node> artNodes = new HashSet<Node>();
 
@@ -66,32 +111,23 @@ public class Mapper extends GUI {
 	}
 	
 	private void textOutput () {
-		if (start != null && goal != null && path != null) {	//if there is path and start and goal
+		if (start != null && goal != null && route != null) {	//if there is path and start and goal
 			//highlight each node in path
 			for (Node n : path) {
 				n.highlight = true;
 			}
 
-			//initialise map of road lengths to road names
-			roadsAlongPath = new HashMap<String,Double>();
-			//look at each node in path list
+			//highlight each segment in path
 			for (Node n: path) {
-				//look at each out segment in this node
 				for (Segment s: n.outNeighbours) {
-					//if start and end node of this segment is highlighted, then this segment is included in the path
-					//highlight segment and put appropriate road length in the map
 					if (s.start.highlight && s.end.highlight) {
 						s.highlight = true;
-						if (!roadsAlongPath.containsKey(s.road.toString())) {		//new road in map
-							roadsAlongPath.put(s.road.toString(), s.length);
-						} else {		//existing road in map
-							double currentLength = roadsAlongPath.get(s.road.toString());
-							roadsAlongPath.put(s.road.toString(), currentLength+s.length);
-						}
-						
 					}
 				}
 			}
+
+			//road lengths along the route, indexed by the road name, in the order they're driven
+			roadsAlongPath = route.roadLengths();
 			
 			//output text start and goal node
 			getTextOutputArea().setText("From Node "+start.nodeID+" to Node "+goal.nodeID);
@@ -104,24 +140,61 @@ public class Mapper extends GUI {
 			}
 			//output text total length of route
 			getTextOutputArea().append("\n Total length is: "+totLength+" km");				
+
+			//output text when it gets there, for a route at a time of day
+			if (departure >= 0) {
+				double minutes = graph.speedProfiles().duration(route, departure, graph.overlay());
+				getTextOutputArea().append(String.format("\n Leaving at %s, arriving at %s (%.0f min)",
+						clock(departure), clock(departure + minutes), minutes));
+			}
+
+			//output text the alternatives, and how much longer they are than the route shown,
+			//or how much slower at the time of day
+			for (int i = 1; i < routes.size(); i++) {
+				Route alt = routes.get(i);
+				if (departure >= 0) {
+					SpeedProfiles profiles = graph.speedProfiles();
+					double minutes = profiles.duration(alt, departure, graph.overlay());
+					getTextOutputArea().append(String.format("\n Alternative %d: %.3f km, %.0f min (+%.0f%%)", i,
+							alt.length, minutes, (minutes / profiles.duration(route, departure, graph.overlay()) - 1) * 100));
+				} else {
+					getTextOutputArea().append(String.format("\n Alternative %d: %.3f km (+%.0f%%)", i, alt.length,
+							(alt.cost / route.cost - 1) * 100));
+				}
+			}
+
+			//output text road capacity between start and goal
+			if (capacity != null) {
+				getTextOutputArea().append("\n Road capacity is: "+capacity.capacity+" vehicles/hour, limited by "
+						+capacity.minCut.size()+" segments");
+			}
 			
+		} else if (start != null && goal != null) {
+			//no route, say why if the components show it
+			StrongComponents scc = graph.strongComponents();
+			getTextOutputArea().setText("No route from Node "+start.nodeID+" to Node "+goal.nodeID);
+			if (scc.cannotReach(start, goal)) {
+				getTextOutputArea().append("\n Start is in "+scc.describe(start));
+				getTextOutputArea().append("\n Goal is in "+scc.describe(goal));
+			}
 		}
 	}
 
+	/**
+	 * Formats minutes since midnight as a 24 hour clock time.
+	 */
+	private static String clock(double minutes) {
+		int m = (int) Math.round(minutes) % (24 * 60);
+		return String.format("%02d:%02d", m / 60, m % 60);
+	}
+
 	@Override
 	protected void onClick(MouseEvent e) {
 		Location clicked = Location.newFromPoint(e.getPoint(), origin, scale);
 		// find the closest node.
-		double bestDist = Double.MAX_VALUE;
-		Node closest = null;
-
-		for (Node node : graph.nodes.values()) {
-			double distance = clicked.distance(node.location);
-			if (distance < bestDist) {
-				bestDist = distance;
-				closest = node;
-			}
-		}
+		Node closest = graph.closestNode(clicked);
+		departure = -1;
+		graph.setTour(null);
 		
 		//used to select two nodes --  for route finder
 		if (start ==  null && goal ==  null) {	//if no start node, means first pick
@@ -134,15 +207,56 @@ public class Mapper extends GUI {
 		}
 
 		// if it's close enough, highlight it and show some information.
+		// also say which road was clicked on, and where along it.
+		SegmentIndex.SegmentMatch onRoad = segmentIndex.nearest(clicked);
+		boolean nearRoad = onRoad != null && onRoad.distance < MAX_CLICKED_DISTANCE;
 		if (clicked.distance(closest.location) < MAX_CLICKED_DISTANCE) {
 			graph.setHighlight(closest);
 			getTextOutputArea().setText(closest.toString());
+			getTextOutputArea().append("\nin " + graph.strongComponents().describe(closest));
+			if (nearRoad)
+				getTextOutputArea().append("\nnearest road: " + onRoad);
+		} else if (nearRoad) {
+			getTextOutputArea().setText("nearest road: " + onRoad);
 		}
 		
-		//if there's start and goal nodes, run a* search, put result in path list field
+		findRoute();
+	}
+
+	//if there's start and goal nodes, run a* search, put result in path list field
+	//and work out the road capacity between them
+	private void findRoute() {
 		if (start != null && goal != null) {
-			graph.AstarSearch(start, goal);
-			path = graph.printPath(goal);
+			final Node from = start, to = goal;
+			final double leave = departure;
+			if (leave >= 0) {
+				route = routeCache.get(from, to, String.format("leaving %.0f", leave), () -> {
+					TrafficOverlay costs = graph.overlay();
+					Dijkstra dijkstra = new Dijkstra(graph);
+					dijkstra.run(from, to, leave, graph.speedProfiles().travelTime(costs));
+					List<Segment> fastest = dijkstra.pathTo(to);
+					return fastest == null ? null : new Route(fastest, from, costs);
+				});
+			} else {
+				route = routeCache.get(from, to, "shortest", () -> {
+					graph.AstarSearch(from, to);
+					Route r = Route.fromNodes(graph.printPath(to), graph.overlay());
+					return r != null && r.start() == from ? r : null;	// null if the goal couldn't be reached
+				});
+			}
+			path = route == null ? null : route.nodes;
+			//alternatives by the same weight as the route: by time of day when leaving at a time
+			routes = alternativesCache.get(from, to, leave >= 0 ? String.format("alternatives leaving %.0f", leave)
+					: "alternatives", () -> AlternativeRoutes.find(graph, from, to, MAX_ROUTES, leave));
+			graph.setAlternatives(routes.isEmpty() ? routes : routes.subList(1, routes.size()));
+			capacity = capacityCache.get(from, to, "capacity", () -> CapacityAnalysis.compute(graph, from, to));
+			graph.setMinCut(capacity.minCut);
+		} else {
+			route = null;
+			routes = new ArrayList<>();
+			graph.setAlternatives(routes);
+			capacity = null;
+			graph.setMinCut(new HashSet<Segment>());
 		}
 	}
 
@@ -151,44 +265,188 @@ public class Mapper extends GUI {
 		if (trie == null)
 			return;
 
-		// get the search query and run it through the trie.
+		// get the search query. if any streets exactly match it, as per the
+		// specification, we should only highlight exact matches. otherwise we
+		// highlight the streets of the best few names that start with it,
+		// which the trie has ready for every prefix, so this stays cheap
+		// however short the query is.
 		String query = getSearchBox().getText();
-		Collection<Road> selected = trie.get(query);
-
-		// figure out if any of our selected roads exactly matches the search
-		// query. if so, as per the specification, we should only highlight
-		// exact matches. there may be (and are) many exact matches, however, so
-		// we have to do this carefully.
-		boolean exactMatch = false;
-		for (Road road : selected)
-			if (road.name.equals(query))
-				exactMatch = true;
-
-		// make a set of all the roads that match exactly, and make this our new
-		// selected set.
-		if (exactMatch) {
-			Collection<Road> exactMatches = new HashSet<>();
-			for (Road road : selected)
-				if (road.name.equals(query))
-					exactMatches.add(road);
-			selected = exactMatches;
+
+		// "within 5 km" or "within 8 min" shows what can be reached from the
+		// selected intersection, or from every address in "... of street,
+		// city; street, city"
+		Matcher within = WITHIN.matcher(query.trim());
+		if (within.matches()) {
+			showReachable(Double.parseDouble(within.group(1)),
+					within.group(2).toLowerCase().startsWith("min"), within.group(3));
+			return;
 		}
 
-		// set the highlighted roads.
-		graph.setHighlight(selected);
+		Matcher busiest = BUSIEST.matcher(query.trim());
+		if (busiest.matches()) {
+			showBusiest(busiest.group(1) == null ? Betweenness.DEFAULT_SOURCES : Integer.parseInt(busiest.group(1)));
+			return;
+		}
+
+		Matcher tour = TOUR.matcher(query.trim());
+		if (tour.matches()) {
+			planTour(tour.group(1));
+			return;
+		}
 
-		// now build the string for display. we filter out duplicates by putting
-		// it through a set first, and then combine it.
-		Collection<String> names = new HashSet<>();
-		for (Road road : selected)
-			names.add(road.name);
-		String str = "";
+		// "street, city to street, city" asks for a route between the two
+		// addresses, as if their nearest intersections had been clicked.
+		// "... at 8:30" asks for the fastest route leaving then.
+		String trip = query;
+		double leave = -1;
+		Matcher leaving = LEAVING.matcher(query.trim());
+		if (leaving.matches()) {
+			trip = leaving.group(1);
+			leave = Integer.parseInt(leaving.group(2)) * 60 + Integer.parseInt(leaving.group(3));
+		}
+		int to = trip.indexOf(" to ");
+		if (to >= 0) {
+			Geocoder.Geocode from = geocoder.geocode(trip.substring(0, to));
+			Geocoder.Geocode dest = geocoder.geocode(trip.substring(to + 4));
+			if (from != null && dest != null) {
+				start = from.node;
+				goal = dest.node;
+				departure = leave;
+				graph.setHighlight(goal);
+				findRoute();
+				return;
+			}
+		}
+
+		List<String> names = new ArrayList<>();
+		if (!streets.byName(query).isEmpty()) {
+			names.add(query);
+		} else {
+			names = trie.complete(query, Trie.MAX_COMPLETIONS);
+			// nothing starts with the query, so it's probably misspelt:
+			// look for names that start with something close to it instead
+			if (names.isEmpty()) {
+				int typos = query.length() <= SHORT_QUERY ? 1 : MAX_TYPOS;
+				names = trie.fuzzy(query, typos, Trie.MAX_COMPLETIONS);
+			}
+		}
+
+		// set the highlighted streets: every street, in any city, with one of
+		// the names.
+		List<StreetIndex.Street> selected = new ArrayList<>();
 		for (String name : names)
-			str += name + "; ";
+			selected.addAll(streets.byName(name));
+		graph.setHighlightStreets(selected);
 
-		if (str.length() != 0)
-			str = str.substring(0, str.length() - 2);
-		getTextOutputArea().setText(str);
+		// now build the string for display, best match first.
+		StringBuilder str = new StringBuilder();
+		for (String name : names) {
+			if (str.length() != 0)
+				str.append("; ");
+			str.append(name);
+		}
+		getTextOutputArea().setText(str.toString());
+	}
+
+	private void showReachable(double limit, boolean minutes, String addresses) {
+		List<Node> stations = new ArrayList<>();
+		if (addresses == null) {
+			if (start != null)
+				stations.add(start);
+		} else {
+			for (String address : addresses.split(";")) {
+				Geocoder.Geocode g = geocoder.geocode(address);
+				if (g != null)
+					stations.add(g.node);
+			}
+		}
+		if (stations.isEmpty()) {
+			graph.setIsochrone(null);
+			getTextOutputArea().setText("Select an intersection or give addresses to search from");
+			return;
+		}
+
+		Isochrone reach = Isochrone.computeAll(graph, stations, limit, minutes);
+		graph.setIsochrone(reach);
+		getTextOutputArea().setText(reach + " of " + stations.size() + " station(s)");
+	}
+
+	/**
+	 * Orders the stops at the given addresses into a round trip from the
+	 * first, on a background thread since it takes a couple of seconds.
+	 */
+	private void planTour(String addresses) {
+		final List<Node> stops = new ArrayList<>();
+		for (String address : addresses.split(";")) {
+			Geocoder.Geocode g = geocoder.geocode(address);
+			if (g == null) {
+				getTextOutputArea().setText("Can't find " + address.trim());
+				return;
+			}
+			stops.add(g.node);
+		}
+		start = goal = null;
+		route = null;
+		final Graph planned = graph;
+		getTextOutputArea().setText("Planning a tour of " + stops.size() + " stops...");
+		new SwingWorker<TourOptimiser.Tour, Void>() {
+			protected TourOptimiser.Tour doInBackground() {
+				return TourOptimiser.optimise(planned, stops, true, TourOptimiser.DEFAULT_BUDGET,
+						System.nanoTime());
+			}
+
+			protected void done() {
+				if (planned != graph)
+					return;
+				TourOptimiser.Tour tour;
+				try {
+					tour = get();
+				} catch (InterruptedException | ExecutionException e) {
+					getTextOutputArea().setText("Planning the tour failed: " + e.getCause().getMessage());
+					return;
+				}
+				graph.setTour(tour.route);
+				getTextOutputArea().setText("Tour of " + tour);
+				for (int i = 0; i < tour.stops.size(); i++)
+					getTextOutputArea().append("\n " + (i + 1) + ": " + tour.stops.get(i));
+				redraw();
+			}
+		}.execute();
+	}
+
+	/**
+	 * Estimates how many shortest paths go through each intersection from
+	 * the given number of sources, on a background thread (or reads it from
+	 * the cache next to the data), then shows them as a heat map and lists the
+	 * busiest.
+	 */
+	private void showBusiest(final int sources) {
+		final Graph loaded = graph;
+		getTextOutputArea().setText("Finding the busiest intersections...");
+		new SwingWorker<Betweenness, Void>() {
+			protected Betweenness doInBackground() {
+				return Betweenness.loadOrCompute(loaded, nodesFile, roadsFile, segmentsFile, sources,
+						Betweenness.DEFAULT_BUDGET);
+			}
+
+			protected void done() {
+				if (loaded != graph)
+					return;
+				Betweenness b;
+				try {
+					b = get();
+				} catch (InterruptedException | ExecutionException e) {
+					getTextOutputArea().setText("Finding the busiest intersections failed: " + e.getCause());
+					return;
+				}
+				graph.setBetweenness(b);
+				getTextOutputArea().setText("Busiest intersections, " + b + ":");
+				for (Node n : b.top(BUSIEST_LISTED))
+					getTextOutputArea().append(String.format("\n %d: %.2f%% of shortest paths", n.nodeID,
+							100 * b.share(n)));
+				redraw();
+			}
+		}.execute();
 	}
 
 	@Override
@@ -221,31 +479,66 @@ public class Mapper extends GUI {
 	protected void onLoad(File nodes, File roads, File segments, File polygons) {
 		graph = new Graph(nodes, roads, segments, polygons);
 		trie = new Trie(graph.roads.values());
+		streets = new StreetIndex(graph.roads.values());
+		geocoder = new Geocoder(streets);
+		segmentIndex = new SegmentIndex(graph.segments);
+		routeCache = new RouteCache<>(graph);
+		alternativesCache = new RouteCache<>(graph);
+		capacityCache = new RouteCache<>(graph);
 		origin = new Location(-250, 250); // close enough
 		scale = 1;
-				
-		List <Integer> artComponents = new ArrayList<Integer>();
-		int artNodesPrevSize = 0;
-		
-		//run articulation points method and put set of nodes in artNodes set field
-		for (Node n: graph.nodes.values()) {
-			if (!n.visited) {
-				graph.articulation(n, artNodes);
-				artComponents.add(artNodes.size()-artNodesPrevSize);
-				artNodesPrevSize = artNodes.size();
+		artNodes = new HashSet<Node>();
+		nodesFile = nodes;
+		roadsFile = roads;
+		segmentsFile = segments;
+
+		getTextOutputArea().setText("Finding critical intersections...");
+		analyseCriticalIntersections(graph, nodes, roads, segments);
+	}
+
+	/**
+	 * Runs the articulation points analysis on a background thread (or reads
+	 * it from the cache next to the data), so loading doesn't wait on it. The
+	 * critical nodes are highlighted once it finishes.
+	 */
+	private void analyseCriticalIntersections(final Graph loaded, final File nodes,
+			final File roads, final File segments) {
+		new SwingWorker<ArticulationAnalysis, Void>() {
+			protected ArticulationAnalysis doInBackground() {
+				return ArticulationAnalysis.loadOrCompute(loaded, nodes, roads, segments);
 			}
-		}
-		
-		getTextOutputArea().setText("");
-		for (int i = 0; i < artComponents.size(); i++) {
-			getTextOutputArea().append("Component "+ (i+1) +" has "+artComponents.get(i)+" articulation points\n");
-		}
-		getTextOutputArea().append("\nThis data has this total of articulation points: "+artNodes.size());
-		
-		//highlight every node in artNodes list
-		for (Node n: artNodes) {
-			n.critical = true;
-		}
+
+			protected void done() {
+				// a different data set may have been loaded in the meantime
+				if (loaded != graph)
+					return;
+
+				ArticulationAnalysis analysis;
+				try {
+					analysis = get();
+				} catch (InterruptedException | ExecutionException e) {
+					getTextOutputArea().setText("Finding critical intersections failed: " + e.getCause());
+					return;
+				}
+				artNodes = analysis.nodes;
+
+				getTextOutputArea().setText("");
+				List<Integer> artComponents = analysis.componentCounts;
+				for (int i = 0; i < artComponents.size(); i++) {
+					getTextOutputArea().append("Component "+ (i+1) +" has "+artComponents.get(i)+" articulation points\n");
+				}
+				getTextOutputArea().append("\nThis data has this total of articulation points: "+artNodes.size());
+				getTextOutputArea().append("\nThis data has this total of critical road segments: "+analysis.bridges.size());
+				getTextOutputArea().append("\nOne way roads split it into "+graph.strongComponents());
+
+				//highlight every node in artNodes list
+				for (Node n: artNodes) {
+					n.critical = true;
+				}
+				graph.setBridges(analysis.bridges);
+				redraw();
+			}
+		}.execute();
 	}
 
 	/**
@@ -0,0 +1,212 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Counts what the routing and analysis queries cost: nodes settled, edges
+ * relaxed, priority queue operations, wall time and bytes allocated. Each
+ * query is recorded in a latency histogram for its kind, and also emitted as
+ * a JFR event, so it shows up in a flight recording alongside GC and the
+ * rest.
+ *
+ * It is switched on with -Droadmap.metrics=true, and the totals are printed
+ * when the program exits. ENABLED is a static final, so when it is off the
+ * JIT removes every "if (Metrics.ENABLED)" in the hot loops entirely.
+ *
+ */
+public class Metrics {
+	public static final boolean ENABLED = Boolean.getBoolean("roadmap.metrics");
+
+	private static final Map<String, Stats> STATS = new ConcurrentHashMap<>();
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	static {
+		if (ENABLED) {
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(report())));
+		}
+	}
+
+	/**
+	 * Starts timing a query of the given kind. Only call this when ENABLED.
+	 */
+	public static Query start(String kind) {
+		return new Query(kind);
+	}
+
+	/**
+	 * Returns the stats recorded for queries of the given kind, or null if
+	 * there haven't been any.
+	 */
+	public static Stats stats(String kind) {
+		return STATS.get(kind);
+	}
+
+	/**
+	 * Returns a table of every kind of query recorded so far.
+	 */
+	public static String report() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-14s %8s %10s %10s %10s %10s %10s %10s %10s%n", "query", "count", "p50 us",
+				"p99 us", "max us", "settled", "relaxed", "heap ops", "alloc KB"));
+		for (Stats s : new TreeMap<>(STATS).values()) {
+			long n = Math.max(1, s.count.get());
+			sb.append(String.format("%-14s %8d %10.1f %10.1f %10.1f %10d %10d %10d %10.1f%n", s.kind,
+					s.count.get(), s.latency.percentile(0.5) / 1e3, s.latency.percentile(0.99) / 1e3,
+					s.latency.max() / 1e3, s.settled.get() / n, s.relaxed.get() / n, s.heapOps.get() / n,
+					s.allocated.get() / n / 1024.0));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * One query being measured.
+	 */
+	public static class Query {
+		private final String kind;
+		private final long begin, allocatedBefore;
+		private final QueryEvent event = new QueryEvent();
+
+		Query(String kind) {
+			this.kind = kind;
+			this.event.begin();
+			this.allocatedBefore = allocated();
+			this.begin = System.nanoTime();
+		}
+
+		/**
+		 * Ends the query, recording what it did.
+		 */
+		public void finish(long settled, long relaxed, long heapOps) {
+			long nanos = System.nanoTime() - begin;
+			long bytes = allocatedBefore < 0 ? 0 : allocated() - allocatedBefore;
+			STATS.computeIfAbsent(kind, Stats::new).add(nanos, settled, relaxed, heapOps, bytes);
+
+			if (event.shouldCommit()) {
+				event.kind = kind;
+				event.settled = settled;
+				event.relaxed = relaxed;
+				event.heapOps = heapOps;
+				event.allocated = bytes;
+				event.commit();
+			}
+		}
+
+		@SuppressWarnings("restriction")
+		private static long allocated() {
+			if (THREADS instanceof com.sun.management.ThreadMXBean)
+				return ((com.sun.management.ThreadMXBean) THREADS).getCurrentThreadAllocatedBytes();
+			return -1;
+		}
+	}
+
+	/**
+	 * The totals and latency histogram for one kind of query.
+	 */
+	public static class Stats {
+		public final String kind;
+		public final AtomicLong count = new AtomicLong(), settled = new AtomicLong(),
+				relaxed = new AtomicLong(), heapOps = new AtomicLong(), allocated = new AtomicLong();
+		public final Histogram latency = new Histogram();
+
+		Stats(String kind) {
+			this.kind = kind;
+		}
+
+		void add(long nanos, long settled, long relaxed, long heapOps, long bytes) {
+			count.incrementAndGet();
+			this.settled.addAndGet(settled);
+			this.relaxed.addAndGet(relaxed);
+			this.heapOps.addAndGet(heapOps);
+			this.allocated.addAndGet(bytes);
+			latency.record(nanos);
+		}
+	}
+
+	/**
+	 * A histogram of nanosecond times, with buckets an eighth of a power of
+	 * two wide, so percentiles come out within about 10%.
+	 */
+	public static class Histogram {
+		private static final int SUB_BUCKETS = 8;
+		private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+		private final AtomicLong total = new AtomicLong(), max = new AtomicLong();
+
+		public void record(long nanos) {
+			nanos = Math.max(1, nanos);
+			counts.incrementAndGet(bucket(nanos));
+			total.incrementAndGet();
+			max.accumulateAndGet(nanos, Math::max);
+		}
+
+		private static int bucket(long v) {
+			int exp = 63 - Long.numberOfLeadingZeros(v);
+			if (exp < 3)
+				return (int) v;
+			// the three bits after the leading one pick the sub-bucket
+			return exp * SUB_BUCKETS + (int) ((v >>> (exp - 3)) & (SUB_BUCKETS - 1));
+		}
+
+		/**
+		 * Returns the upper end of the bucket the given bucket index covers.
+		 */
+		private static long upper(int bucket) {
+			int exp = bucket / SUB_BUCKETS;
+			if (exp < 3)
+				return bucket;
+			long sub = bucket % SUB_BUCKETS;
+			return ((SUB_BUCKETS + sub + 1) << (exp - 3)) - 1;
+		}
+
+		/**
+		 * Returns roughly the time that fraction p of the recorded times are
+		 * under.
+		 */
+		public long percentile(double p) {
+			long n = total.get();
+			if (n == 0)
+				return 0;
+			long rank = (long) Math.ceil(p * n), seen = 0;
+			for (int i = 0; i < counts.length(); i++) {
+				seen += counts.get(i);
+				if (seen >= rank)
+					return Math.min(upper(i), max.get());
+			}
+			return max.get();
+		}
+
+		public long max() {
+			return max.get();
+		}
+
+		public long count() {
+			return total.get();
+		}
+	}
+
+	@Name("roadmap.Query")
+	@Label("Road Map Query")
+	@Category("Road Map")
+	@Description("A routing or analysis query, and how much work it did")
+	static class QueryEvent extends Event {
+		@Label("Kind")
+		String kind;
+		@Label("Nodes Settled")
+		long settled;
+		@Label("Edges Relaxed")
+		long relaxed;
+		@Label("Heap Operations")
+		long heapOps;
+		@Label("Bytes Allocated")
+		long allocated;
+	}
+}
@@ -0,0 +1,362 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Makes a synthetic road network of any size, in exactly the formats Parser
+ * reads, for testing loading, routing and drawing at scale:
+ *
+ * java NetworkGenerator output-directory number-of-nodes [seed]
+ *
+ * The network is a jittered grid of intersections about SPACING km apart,
+ * centred on Auckland. Every 10th row and column is an arterial road, every
+ * 50th a highway, and the streets between are local roads, a few of which are
+ * one way or not for cars. Some local blocks are missing, which gives dead
+ * ends and T intersections, so most intersections have three or four roads
+ * and some have one or two, much like the real data.
+ *
+ * Everything about a node, segment or road is worked out from a hash of the
+ * seed and its grid position, rather than kept in memory, so the files are
+ * written in a single streaming pass and sizes up to 10 million nodes and
+ * beyond only need disk space.
+ *
+ */
+public class NetworkGenerator {
+	public static final String RESTRICTIONS_FILENAME = "restrictions.tab";
+
+	// km between neighbouring intersections
+	public static final double SPACING = 0.1;
+	// how many segments make up a road, and a city
+	public static final int ROAD_BLOCKS = 10, CITY_BLOCKS = 100;
+	// chance of a local street between two intersections being there
+	public static final double LOCAL_STREET = 0.85;
+	public static final double ONE_WAY = 0.05, NOT_FOR_CAR = 0.04;
+	// chance of each intersection having a turn restriction, and each block
+	// having a building or park drawn in it
+	public static final double RESTRICTION = 0.006, POLYGON = 0.2;
+
+	private static final String[] NAMES = { "kauri", "rimu", "totara", "matai", "kowhai", "pohutukawa",
+			"harbour", "beach", "hill", "valley", "station", "church", "school", "mill", "bridge", "park",
+			"queen", "king", "victoria", "albert", "nelson", "wellington", "grey", "hobson", "fitzroy",
+			"grafton", "ponsonby", "karaka", "titirangi", "manuka", "tui", "kereru", "ruru", "weka",
+			"takahe", "kiwi", "tasman", "cook", "marsden", "selwyn" };
+	private static final String[] SUFFIXES = { "rd", "st", "ave", "dr", "pl", "cres", "lane", "tce" };
+	private static final int[] POLYGON_TYPES = { 0x7, 0x13, 0x14, 0x17, 0x1a, 0x3c };
+
+	private final long seed;
+	private final int nodes, rows, cols;
+	// reused for every line written
+	private final StringBuilder line = new StringBuilder();
+
+	public NetworkGenerator(int nodes, long seed) {
+		this.seed = seed;
+		this.nodes = nodes;
+		this.cols = (int) Math.ceil(Math.sqrt(nodes));
+		this.rows = (nodes + cols - 1) / cols;
+	}
+
+	/**
+	 * Writes the nodes, roads, segments, restrictions and polygons files into
+	 * dir.
+	 */
+	public void write(File dir) throws IOException {
+		dir.mkdirs();
+		try (Writer out = open(dir, GUI.NODES_FILENAME)) {
+			writeNodes(out);
+		}
+		try (Writer out = open(dir, GUI.ROADS_FILENAME)) {
+			writeRoads(out);
+		}
+		try (Writer out = open(dir, GUI.SEGS_FILENAME)) {
+			writeSegments(out);
+		}
+		try (Writer out = open(dir, RESTRICTIONS_FILENAME)) {
+			writeRestrictions(out);
+		}
+		try (Writer out = open(dir, GUI.POLYS_FILENAME)) {
+			writePolygons(out);
+		}
+	}
+
+	private static Writer open(File dir, String name) throws IOException {
+		return new BufferedWriter(new FileWriter(new File(dir, name)), 1 << 16);
+	}
+
+	// ------------------------------------------------------------------
+	// the grid. node (r, c) has ID r * cols + c + 1; a horizontal road covers
+	// ROAD_BLOCKS segments of a row, and a vertical one of a column.
+	// ------------------------------------------------------------------
+
+	private boolean exists(int r, int c) {
+		return r < rows && c < cols && (long) r * cols + c < nodes;
+	}
+
+	private int nodeID(int r, int c) {
+		return r * cols + c + 1;
+	}
+
+	private Location location(int r, int c) {
+		double jx = (hash(r, c, 1) - 0.5) * SPACING * 0.5;
+		double jy = (hash(r, c, 2) - 0.5) * SPACING * 0.5;
+		return new Location((c - cols / 2.0) * SPACING + jx, (rows / 2.0 - r) * SPACING + jy);
+	}
+
+	private static boolean arterial(int line) {
+		return line % 10 == 0;
+	}
+
+	private static boolean highway(int line) {
+		return line % 50 == 0;
+	}
+
+	/**
+	 * Returns whether there is a street from (r, c) to the next intersection
+	 * along (horizontal) or down (not).
+	 */
+	private boolean street(int r, int c, boolean horizontal) {
+		if (horizontal ? !exists(r, c + 1) : !exists(r + 1, c))
+			return false;
+		if (arterial(horizontal ? r : c))
+			return true;
+		return hash(r, c, horizontal ? 3 : 4) < LOCAL_STREET;
+	}
+
+	private int horizontalRoads() {
+		return (cols + ROAD_BLOCKS - 1) / ROAD_BLOCKS;
+	}
+
+	private int roadID(int r, int c, boolean horizontal) {
+		if (horizontal)
+			return r * horizontalRoads() + c / ROAD_BLOCKS + 1;
+		int verticalRoads = (rows + ROAD_BLOCKS - 1) / ROAD_BLOCKS;
+		return rows * horizontalRoads() + c * verticalRoads + r / ROAD_BLOCKS + 1;
+	}
+
+	// ------------------------------------------------------------------
+	// the files
+	// ------------------------------------------------------------------
+
+	private void writeNodes(Writer out) throws IOException {
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < cols; c++) {
+				if (!exists(r, c))
+					continue;
+				Location loc = location(r, c);
+				line.setLength(0);
+				line.append(nodeID(r, c)).append('\t');
+				fixed(line, loc.latitude(), 6).append('\t');
+				fixed(line, loc.longitude(), 6).append('\n');
+				out.append(line);
+			}
+		}
+	}
+
+	private void writeRoads(Writer out) throws IOException {
+		out.write("roadid\ttype\tlabel\tcity\toneway\tspeed\troadclass\tnotforcar\tnotforpede\tnotforbicy\n");
+		for (int r = 0; r < rows; r++)
+			for (int c = 0; c < cols; c += ROAD_BLOCKS)
+				writeRoad(out, r, c, true);
+		for (int c = 0; c < cols; c++)
+			for (int r = 0; r < rows; r += ROAD_BLOCKS)
+				writeRoad(out, r, c, false);
+	}
+
+	/**
+	 * Writes the road whose first intersection is (r, c).
+	 */
+	private void writeRoad(Writer out, int r, int c, boolean horizontal) throws IOException {
+		Road road = road(r, c, horizontal);
+		out.write(String.format(Locale.ROOT, "%d\t%d\t%s\t%s\t%d\t%d\t%d\t%d\t0\t0\n", road.roadID, type(road),
+				road.name, road.city, road.oneWay, road.speed, road.roadClass, road.notForCar));
+	}
+
+	/**
+	 * Works out the road that the street from (r, c) along or down is part of.
+	 */
+	private Road road(int r, int c, boolean horizontal) {
+		int line = horizontal ? r : c;
+		int block = (horizontal ? c : r) / ROAD_BLOCKS;
+		int id = roadID(r, c, horizontal);
+		int city = (r / CITY_BLOCKS) * ((cols + CITY_BLOCKS - 1) / CITY_BLOCKS) + c / CITY_BLOCKS;
+		double h = hash(line, block, horizontal ? 5 : 6);
+
+		int roadClass, speed, oneWay = 0, notForCar = 0;
+		if (highway(line)) {
+			roadClass = line % 100 == 0 ? 4 : 3;
+			speed = line % 100 == 0 ? 6 : 5;
+		} else if (arterial(line)) {
+			roadClass = h < 0.5 ? 2 : 1;
+			speed = 4;
+		} else {
+			roadClass = 0;
+			speed = h < 0.75 ? 2 : 3;
+			if (h < NOT_FOR_CAR) {
+				notForCar = 1;
+				speed = 1;
+			} else if (h > 1 - ONE_WAY) {
+				oneWay = 1;
+			}
+		}
+
+		// the same name all along a line within a city
+		int n = (int) (hash(line, city, horizontal ? 7 : 8) * NAMES.length * SUFFIXES.length);
+		String name = NAMES[n % NAMES.length] + " " + SUFFIXES[n / NAMES.length];
+		if (notForCar == 1)
+			name = NAMES[n % NAMES.length] + " walkway";
+		return new Road(id, 0, name, "city " + (city + 1), oneWay, speed, roadClass, notForCar, 0, 0);
+	}
+
+	private static int type(Road road) {
+		if (road.notForCar == 1)
+			return 10;
+		if (road.roadClass >= 3)
+			return road.roadClass == 4 ? 1 : 2;
+		if (road.roadClass > 0)
+			return road.roadClass == 2 ? 4 : 5;
+		return 6;
+	}
+
+	private void writeSegments(Writer out) throws IOException {
+		out.write("roadid\tlength\tnodeID1\tnodeID2\tcoords\n");
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < cols; c++) {
+				if (street(r, c, true))
+					writeSegment(out, r, c, r, c + 1, true);
+				if (street(r, c, false))
+					writeSegment(out, r, c, r + 1, c, false);
+			}
+		}
+	}
+
+	private void writeSegment(Writer out, int r1, int c1, int r2, int c2, boolean horizontal) throws IOException {
+		Road road = road(r1, c1, horizontal);
+		// one way streets all run the same way along a road
+		if (road.oneWay == 1 && hash(road.roadID, 0, 9) < 0.5) {
+			int r = r1, c = c1;
+			r1 = r2;
+			c1 = c2;
+			r2 = r;
+			c2 = c;
+		}
+
+		// local streets bend a little part way along
+		Location a = location(r1, c1), b = location(r2, c2);
+		Location[] points;
+		if (road.roadClass == 0) {
+			double t = 0.3 + 0.4 * hash(r1 + r2, c1 + c2, 10);
+			double bend = (hash(r1 + r2, c1 + c2, 11) - 0.5) * SPACING * 0.2;
+			double dx = b.x - a.x, dy = b.y - a.y, len = Math.hypot(dx, dy);
+			Location mid = new Location(a.x + t * dx - bend * dy / len, a.y + t * dy + bend * dx / len);
+			points = new Location[] { a, mid, b };
+		} else {
+			points = new Location[] { a, b };
+		}
+
+		double length = 0;
+		for (int i = 1; i < points.length; i++)
+			length += points[i - 1].distance(points[i]);
+		line.setLength(0);
+		line.append(road.roadID).append('\t');
+		fixed(line, length, 4);
+		line.append('\t').append(nodeID(r1, c1)).append('\t').append(nodeID(r2, c2));
+		for (Location p : points) {
+			fixed(line.append('\t'), p.latitude(), 6);
+			fixed(line.append('\t'), p.longitude(), 6);
+		}
+		out.append(line.append('\n'));
+	}
+
+	/**
+	 * Writes no-turn restrictions, each from the street coming in from the
+	 * left onto the street going down.
+	 */
+	private void writeRestrictions(Writer out) throws IOException {
+		out.write("NodeID\tRoadID\tNodeID\tRoadID\tNodeID\n");
+		for (int r = 0; r < rows; r++) {
+			for (int c = 1; c < cols; c++) {
+				if (hash(r, c, 12) >= RESTRICTION || !street(r, c - 1, true) || !street(r, c, false))
+					continue;
+				out.write(nodeID(r, c - 1) + "\t" + roadID(r, c - 1, true) + "\t" + nodeID(r, c) + "\t"
+						+ roadID(r, c, false) + "\t" + nodeID(r + 1, c) + "\n");
+			}
+		}
+	}
+
+	/**
+	 * Writes a building or park polygon in some of the blocks between
+	 * intersections.
+	 */
+	private void writePolygons(Writer out) throws IOException {
+		for (int r = 0; r + 1 < rows; r++) {
+			for (int c = 0; c + 1 < cols; c++) {
+				if (hash(r, c, 13) >= POLYGON || !exists(r + 1, c + 1))
+					continue;
+				Location a = location(r, c), b = location(r + 1, c + 1);
+				double inset = 0.2;
+				double x0 = a.x + (b.x - a.x) * inset, x1 = b.x - (b.x - a.x) * inset;
+				double y0 = a.y + (b.y - a.y) * inset, y1 = b.y - (b.y - a.y) * inset;
+				int type = POLYGON_TYPES[(int) (hash(r, c, 14) * POLYGON_TYPES.length)];
+				int city = (r / CITY_BLOCKS) * ((cols + CITY_BLOCKS - 1) / CITY_BLOCKS) + c / CITY_BLOCKS;
+
+				line.setLength(0);
+				line.append("[POLYGON]\nType=0x").append(Integer.toHexString(type));
+				line.append("\nEndLevel=1\nCityIdx=").append(city + 1).append("\nData0=");
+				Location[] corners = { new Location(x0, y0), new Location(x1, y0), new Location(x1, y1),
+						new Location(x0, y1) };
+				for (int i = 0; i < corners.length; i++) {
+					line.append(i == 0 ? "(" : ",(");
+					fixed(line, corners[i].latitude(), 5).append(',');
+					fixed(line, corners[i].longitude(), 5).append(')');
+				}
+				out.append(line.append("\n[END]\n\n"));
+			}
+		}
+	}
+
+	/**
+	 * Appends v with the given number of decimal places, as %.nf would but
+	 * without going through a Formatter for every number.
+	 */
+	private static StringBuilder fixed(StringBuilder sb, double v, int decimals) {
+		long scale = 1;
+		for (int i = 0; i < decimals; i++)
+			scale *= 10;
+		long n = Math.round(Math.abs(v) * scale);
+		if (v < 0 && n != 0)
+			sb.append('-');
+		sb.append(n / scale).append('.');
+		String frac = Long.toString(n % scale);
+		for (int i = frac.length(); i < decimals; i++)
+			sb.append('0');
+		return sb.append(frac);
+	}
+
+	/**
+	 * Returns a number in [0, 1) that depends only on the seed and the
+	 * arguments, using the SplitMix64 mixing function.
+	 */
+	private double hash(long a, long b, int salt) {
+		long z = seed + a * 0x9E3779B97F4A7C15L + b * 0xC2B2AE3D27D4EB4FL + salt * 0x165667B19E3779F9L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		z = z ^ (z >>> 31);
+		return (z >>> 11) * 0x1.0p-53;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2 || args.length > 3) {
+			System.err.println("usage: java NetworkGenerator output-directory number-of-nodes [seed]");
+			return;
+		}
+		int nodes = Integer.parseInt(args[1]);
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+		NetworkGenerator generator = new NetworkGenerator(nodes, seed);
+
+		long begin = System.nanoTime();
+		generator.write(new File(args[0]));
+		System.out.printf("wrote %d nodes in %.1f s%n", nodes, (System.nanoTime() - begin) / 1e9);
+	}
+}
@@ -4,7 +4,6 @@ import java.awt.Point;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Queue;
 import java.util.Set;
 
 /**
@@ -17,13 +16,14 @@ public class Node {
 
 	public final int nodeID;
 	public final Location location;
+	public int index;	//dense 0..N-1 position in the graph, used to index arrays
 	//public final Collection<Segment> segments;
 	
 	//added fields
 	//used for A* and articulation points
 	public List<Segment> outNeighbours = new ArrayList<Segment>(2);
 	public List<Segment> inNeighbours = new ArrayList<Segment>(2);
-	public Node parent;	//parent of this node, even though used in both algorithms, it will be reseted everytime. No worries
+	public Node parent;	//parent of this node in the A* search tree, reseted everytime
 	
 	//used for route finding
 	public double g_score;	// g is distance from the start
@@ -31,12 +31,8 @@ public class Node {
 	public double f_score;		// f = g + h 
 	public boolean highlight = false; 	//part of route???
 	
-	//used for articulation points - first four fields for recursive, all fields for iterative
-	public int depth = Integer.MAX_VALUE;
-	public int reachBack = 0; 		//the minimum depth that the subtree node that the subtree can reach back
+	//used for articulation points
 	public boolean critical = false;	//articulation point???
-	public boolean visited = false;
-	public Queue <Node> children = null;		//children nodes of this node
 
 	public Node(int nodeID, double lat, double lon) {
 		this.nodeID = nodeID;
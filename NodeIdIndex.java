@@ -0,0 +1,51 @@
+import java.util.Arrays;
+
+/**
+ * Maps the node IDs used in the data files to the dense Node.index used
+ * inside the program, without boxing either. It is an open addressing hash
+ * table with linear probing on two parallel int arrays, kept at most half
+ * full, so a lookup is usually a single probe.
+ *
+ */
+public class NodeIdIndex {
+	private static final int EMPTY = Integer.MIN_VALUE;
+
+	private final int[] keys, values;
+	private final int mask;
+
+	/**
+	 * Makes the index for the given IDs: ids[i] maps to i.
+	 */
+	public NodeIdIndex(int[] ids) {
+		int capacity = Integer.highestOneBit(Math.max(2, ids.length) * 2 - 1) * 2;
+		keys = new int[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+		Arrays.fill(keys, EMPTY);
+		for (int i = 0; i < ids.length; i++) {
+			int slot = slot(ids[i]);
+			keys[slot] = ids[i];
+			values[slot] = i;
+		}
+	}
+
+	/**
+	 * Returns the index of the given node ID, or -1 if there's no such node.
+	 */
+	public int get(int id) {
+		int slot = slot(id);
+		return keys[slot] == id ? values[slot] : -1;
+	}
+
+	/**
+	 * Returns the slot holding id, or the empty slot where it would go.
+	 */
+	private int slot(int id) {
+		// spread the bits, since IDs are often close together
+		int h = id * 0x9E3779B9;
+		int slot = (h ^ (h >>> 16)) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != id)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+}
@@ -2,9 +2,11 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -18,7 +20,9 @@ import java.util.Set;
 public class Parser {
 
 	public static Map<Integer, Node> parseNodes(File nodes, Graph graph) {
-		Map<Integer, Node> map = new HashMap<Integer, Node>();
+		int count = 0;
+		int[] ids = new int[1024];
+		double[] lats = new double[1024], lons = new double[1024];
 
 		try {
 			// make a reader
@@ -30,13 +34,17 @@ public class Parser {
 				// tokenise the line by splitting it at the tabs.
 				String[] tokens = line.split("[\t]+");
 
-				// process the tokens
-				int nodeID = asInt(tokens[0]);
-				double lat = asDouble(tokens[1]);
-				double lon = asDouble(tokens[2]);
+				if (count == ids.length) {
+					ids = Arrays.copyOf(ids, count * 2);
+					lats = Arrays.copyOf(lats, count * 2);
+					lons = Arrays.copyOf(lons, count * 2);
+				}
 
-				Node node = new Node(nodeID, lat, lon);
-				map.put(nodeID, node);
+				// process the tokens
+				ids[count] = asInt(tokens[0]);
+				lats[count] = asDouble(tokens[1]);
+				lons[count] = asDouble(tokens[2]);
+				count++;
 			}
 
 			br.close();
@@ -44,9 +52,74 @@ public class Parser {
 			throw new RuntimeException("file reading failed.");
 		}
 
+		// make the Nodes in order along a Hilbert curve, so nodes that are
+		// close on the map are close in memory and in the map's iteration
+		// order (and so in Node.index)
+		Map<Integer, Node> map = new LinkedHashMap<Integer, Node>(count * 4 / 3 + 1);
+		for (int i : hilbertOrder(lats, lons, count)) {
+			Node node = new Node(ids[i], lats[i], lons[i]);
+			map.put(ids[i], node);
+		}
 		return map;
 	}
 
+	/**
+	 * Returns the positions 0..count-1 sorted by where each point falls along
+	 * a Hilbert curve filling the points' bounding box.
+	 */
+	private static int[] hilbertOrder(double[] lats, double[] lons, int count) {
+		double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+		double minLon = Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+		for (int i = 0; i < count; i++) {
+			minLat = Math.min(minLat, lats[i]);
+			maxLat = Math.max(maxLat, lats[i]);
+			minLon = Math.min(minLon, lons[i]);
+			maxLon = Math.max(maxLon, lons[i]);
+		}
+		double latScale = (HILBERT_SIDE - 1) / Math.max(maxLat - minLat, 1e-9);
+		double lonScale = (HILBERT_SIDE - 1) / Math.max(maxLon - minLon, 1e-9);
+
+		// sort the curve positions with the point number in the low bits
+		long[] keys = new long[count];
+		for (int i = 0; i < count; i++) {
+			int x = (int) ((lons[i] - minLon) * lonScale);
+			int y = (int) ((lats[i] - minLat) * latScale);
+			keys[i] = hilbert(x, y) << 32 | i;
+		}
+		Arrays.sort(keys);
+		int[] order = new int[count];
+		for (int i = 0; i < count; i++)
+			order[i] = (int) keys[i];
+		return order;
+	}
+
+	// the Hilbert curve covers a grid this many cells on a side, small enough
+	// that curve positions fit in 30 bits
+	private static final int HILBERT_SIDE = 1 << 15;
+
+	/**
+	 * Returns how far along the Hilbert curve the cell (x, y) is.
+	 */
+	static long hilbert(int x, int y) {
+		long d = 0;
+		for (int s = HILBERT_SIDE / 2; s > 0; s /= 2) {
+			int rx = (x & s) > 0 ? 1 : 0;
+			int ry = (y & s) > 0 ? 1 : 0;
+			d += (long) s * s * ((3 * rx) ^ ry);
+			// rotate the quadrant so the curve inside it lines up
+			if (ry == 0) {
+				if (rx == 1) {
+					x = HILBERT_SIDE - 1 - x;
+					y = HILBERT_SIDE - 1 - y;
+				}
+				int t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+	}
+
 	public static Map<Integer, Road> parseRoads(File roads, Graph graph) {
 		Map<Integer, Road> map = new HashMap<Integer, Road>();
 
@@ -89,6 +162,7 @@ public class Parser {
 			BufferedReader br = new BufferedReader(new FileReader(segments));
 			br.readLine(); // throw away the top line of the file.
 			String line;
+			int segmentID = 0;
 
 			while ((line = br.readLine()) != null) {
 				String[] tokens = line.split("[\t]+");
@@ -102,8 +176,8 @@ public class Parser {
 				for (int i = 4; i < tokens.length; i++)
 					coords[i - 4] = asDouble(tokens[i]);
 
-				Segment segment = new Segment(graph, roadID, length, node1ID,
-						node2ID, coords);
+				Segment segment = new Segment(graph, segmentID++, roadID, length,
+						node1ID, node2ID, coords);
 				set.add(segment);
 			}
 
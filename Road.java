@@ -8,7 +8,7 @@ import java.util.HashSet;
  * 
  */
 public class Road {
-	public final int roadID, oneWay, notForCar;
+	public final int roadID, oneWay, notForCar, speed, roadClass;
 	public final String name, city;
 	public final Collection<Segment> components;
 
@@ -18,6 +18,8 @@ public class Road {
 		//added field
 		this.oneWay = oneway;
 		this.notForCar = notforcar;
+		this.speed = speed;
+		this.roadClass = roadclass;
 		
 		this.roadID = roadID;
 		this.city = city;
@@ -25,6 +27,35 @@ public class Road {
 		this.components = new HashSet<Segment>();
 	}
 
+	// speed limit of each speed category, in km/h. "no limit" is taken as
+	// the fastest limit there is.
+	private static final int[] SPEED_LIMITS = { 5, 20, 40, 60, 80, 100, 110, 110 };
+	// lanes in each direction for each road class, from residential up to
+	// major highway
+	private static final int[] LANES = { 1, 1, 2, 2, 3 };
+	// vehicles per hour one lane can carry at each speed category. these are
+	// rough planning figures, not measurements.
+	private static final int[] LANE_CAPACITY = { 300, 600, 900, 1200, 1600, 1900, 2000, 2000 };
+
+	/**
+	 * Returns the speed limit of this road in km/h.
+	 */
+	public int speedLimit() {
+		return SPEED_LIMITS[Math.max(0, Math.min(speed, SPEED_LIMITS.length - 1))];
+	}
+
+	/**
+	 * Returns how many vehicles per hour this road can carry in each
+	 * direction, estimated from its class and speed limit. Roads that aren't
+	 * for cars carry nothing.
+	 */
+	public int capacity() {
+		if (notForCar == 1)
+			return 0;
+		int lanes = LANES[Math.max(0, Math.min(roadClass, LANES.length - 1))];
+		return lanes * LANE_CAPACITY[Math.max(0, Math.min(speed, LANE_CAPACITY.length - 1))];
+	}
+
 	public void addSegment(Segment seg) {
 		components.add(seg);
 	}
@@ -0,0 +1,97 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A route through the graph: the segments driven along in order, the nodes
+ * they pass through, and how long it is. It also adds up how much of the
+ * route is on each road, in the order the roads come up, for the text output.
+ *
+ */
+public class Route {
+	public final List<Segment> segments;
+	public final List<Node> nodes;
+	public final double length;		// km, along the segments
+	public final double cost;		// by the traffic overlay at the time
+
+	public Route(List<Segment> segments, Node start, TrafficOverlay costs) {
+		this.segments = Collections.unmodifiableList(new ArrayList<>(segments));
+		List<Node> nodes = new ArrayList<>(segments.size() + 1);
+		nodes.add(start);
+		double length = 0, cost = 0;
+		for (Segment s : segments) {
+			nodes.add(s.end);
+			length += s.length;
+			cost += costs.cost(s);
+		}
+		this.nodes = Collections.unmodifiableList(nodes);
+		this.length = length;
+		this.cost = cost;
+	}
+
+	/**
+	 * Makes the route through the given nodes, going along the cheapest open
+	 * segment between each pair. Returns null if some pair isn't joined.
+	 */
+	public static Route fromNodes(List<Node> path, TrafficOverlay costs) {
+		if (path.isEmpty())
+			return null;
+		List<Segment> segments = new ArrayList<>();
+		for (int i = 0; i + 1 < path.size(); i++) {
+			Segment best = null;
+			for (Segment s : path.get(i).outNeighbours) {
+				if (s.end == path.get(i + 1) && costs.cost(s) < Double.POSITIVE_INFINITY
+						&& (best == null || costs.cost(s) < costs.cost(best)))
+					best = s;
+			}
+			if (best == null)
+				return null;
+			segments.add(best);
+		}
+		return new Route(segments, path.get(0), costs);
+	}
+
+	public Node start() {
+		return nodes.get(0);
+	}
+
+	public Node goal() {
+		return nodes.get(nodes.size() - 1);
+	}
+
+	/**
+	 * Returns the length of the route along each road, by road name, in the
+	 * order they are driven.
+	 */
+	public Map<String, Double> roadLengths() {
+		Map<String, Double> lengths = new LinkedHashMap<>();
+		for (Segment s : segments) {
+			Double old = lengths.get(s.road.toString());
+			lengths.put(s.road.toString(), old == null ? s.length : old + s.length);
+		}
+		return lengths;
+	}
+
+	/**
+	 * Returns how much of this route's length is also on the other route,
+	 * counting either direction of a segment as the same road.
+	 */
+	public double sharedLength(Route other) {
+		Set<Integer> theirs = new HashSet<>();
+		for (Segment s : other.segments)
+			theirs.add(s.segmentID);
+		double shared = 0;
+		for (Segment s : segments)
+			if (theirs.contains(s.segmentID))
+				shared += s.length;
+		return shared;
+	}
+
+	public String toString() {
+		return String.format("%.3f km through %d intersections", length, nodes.size());
+	}
+}
@@ -0,0 +1,125 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A bounded least-recently-used cache of routing results, keyed by start
+ * node, goal node and profile (eg. "shortest", or "alternatives"), so routing
+ * between the same places again doesn't search the graph again.
+ *
+ * The cache remembers the version of the graph's traffic overlay its results
+ * were worked out under. When closures or costs change the version moves on,
+ * and the whole cache is dropped the next time it's used, since any route
+ * could have changed.
+ *
+ * All methods are synchronized, so it can be shared between threads. The
+ * work of filling a miss is done outside the lock.
+ *
+ */
+public class RouteCache<V> {
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private final Graph graph;
+	private final Map<Key, V> entries;
+	private long version;
+	private long hits, misses, evictions, invalidations;
+
+	public RouteCache(Graph graph) {
+		this(graph, DEFAULT_CAPACITY);
+	}
+
+	public RouteCache(Graph graph, final int capacity) {
+		this.graph = graph;
+		this.version = graph.overlay().version;
+		// access ordered, so the eldest entry is the least recently used
+		this.entries = new LinkedHashMap<Key, V>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Key, V> eldest) {
+				if (size() <= capacity)
+					return false;
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached result for the route, or works it out with compute
+	 * and caches it. Null results aren't cached.
+	 */
+	public V get(Node start, Node goal, String profile, Supplier<V> compute) {
+		Key key = new Key(start.nodeID, goal.nodeID, profile);
+		long current;
+		synchronized (this) {
+			current = graph.overlay().version;
+			if (current != version) {
+				invalidations++;
+				entries.clear();
+				version = current;
+			}
+			V cached = entries.get(key);
+			if (cached != null) {
+				hits++;
+				return cached;
+			}
+			misses++;
+		}
+
+		V value = compute.get();
+		synchronized (this) {
+			// only keep it if nothing changed while it was being worked out
+			if (value != null && current == version && graph.overlay().version == current)
+				entries.put(key, value);
+		}
+		return value;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the fraction of lookups that were hits, or 0 before any.
+	 */
+	public synchronized double hitRate() {
+		return hits + misses == 0 ? 0 : hits / (double) (hits + misses);
+	}
+
+	public synchronized String toString() {
+		return String.format("%d routes cached, %d hits, %d misses (%.0f%% hits), %d evicted, %d invalidated",
+				entries.size(), hits, misses, hitRate() * 100, evictions, invalidations);
+	}
+
+	private static class Key {
+		final int start, goal;
+		final String profile;
+
+		Key(int start, int goal, String profile) {
+			this.start = start;
+			this.goal = goal;
+			this.profile = profile;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return start == k.start && goal == k.goal && profile.equals(k.profile);
+		}
+
+		public int hashCode() {
+			return (start * 31 + goal) * 31 + profile.hashCode();
+		}
+	}
+}
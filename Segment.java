@@ -1,35 +1,34 @@
 import java.awt.Graphics;
-import java.awt.Point;
 
 /**
  * A Segment is the most interesting class making up our graph, and represents
  * an edge between two Nodes. It knows the Road it belongs to as well as the
- * Nodes it joins, and contains a series of Locations that make up the length of
- * the Segment and can be used to render it.
+ * Nodes it joins. The series of Locations that make up the length of the
+ * Segment, used to render it, is kept off the heap in the graph's
+ * GeometryStore.
  * 
  */
 public class Segment {
 
+	public final int segmentID;	//position in the segments file, shared with the reverse segment
 	public final Road road;
 	public final Node start, end;
 	public final double length;
-	public final Location[] points;
+	public final GeometryStore geometry;
 	
 	public boolean highlight = false;
 
-	public Segment(Graph graph, int roadID, double length, int node1ID,
+	public Segment(Graph graph, int segmentID, int roadID, double length, int node1ID,
 			int node2ID, double[] coords) {
 
+		this.segmentID = segmentID;
 		this.road = graph.roads.get(roadID);
-		this.start = graph.nodes.get(node1ID);
-		this.end = graph.nodes.get(node2ID);
+		this.start = graph.node(node1ID);
+		this.end = graph.node(node2ID);
 		this.length = length;
 
-		points = new Location[coords.length / 2];
-		for (int i = 0; i < points.length; i++) {
-			points[i] = Location
-					.newFromLatLon(coords[2 * i], coords[2 * i + 1]);
-		}
+		this.geometry = graph.geometry;
+		geometry.add(coords);	// stored under segmentID, since they're added in order
 
 		this.road.addSegment(this);	// add this to road object
 		this.start.outNeighbours.add(this);	//add this to out neigh of start node
@@ -43,26 +42,32 @@ public class Segment {
 		}
 	}
 
-	public Segment(Road road, double length, Node end, Node start,	Location[] points) {
+	public Segment(int segmentID, Road road, double length, Node end, Node start,	GeometryStore geometry) {
+		this.segmentID = segmentID;
 		this.road = road;
 		this.start = end;
 		this.end = start;
 		this.length = length;
-		this.points = points;
+		this.geometry = geometry;
+	}
+
+	/**
+	 * Returns the Locations making up the shape of this segment, from the
+	 * original start to end. They're decoded each time, so hot code should
+	 * use the GeometryStore directly.
+	 */
+	public Location[] points() {
+		return geometry.points(segmentID);
 	}
 
 	public void draw(Graphics g, Location origin, double scale) {
-		for (int i = 1; i < points.length; i++) {
-			Point p = points[i - 1].asPoint(origin, scale);
-			Point q = points[i].asPoint(origin, scale);
-			g.drawLine(p.x, p.y, q.x, q.y);
-		}
+		geometry.draw(g, segmentID, origin, scale);
 	}
 	
 	//make a reverse segment -- put start node as end node and end node as start node
 	//this depends whether road is one way or two way
 	public Segment reverse(){
-		Segment seg =  new Segment(road, length, end, start, points);
+		Segment seg =  new Segment(segmentID, road, length, end, start, geometry);
 		return seg;
 	}
 	
@@ -0,0 +1,290 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * A spatial index over the shapes of the road segments, for reverse
+ * geocoding: given a point (eg. a GPS fix) it finds the nearest segment, and
+ * where on that segment the point projects to.
+ *
+ * The map is cut into a uniform grid of square cells, and every straight
+ * piece of every segment's polyline is listed in each cell its bounding box
+ * touches. The cell lists are packed into flat arrays, in the same compressed
+ * form as the adjacency lists in Biconnectivity. A query looks at rings of
+ * cells around the point, moving out until nothing further away could be
+ * closer than what it has already found.
+ *
+ * The index holds only the numbers of the pieces; their ends are read from
+ * the GeometryStore, off the heap, as they're needed.
+ *
+ * The index is never changed once made, so it can be queried from many
+ * threads at once; nearestAll does this for a batch of points.
+ *
+ */
+public class SegmentIndex {
+	// roughly how many polyline pieces to put in each cell
+	private static final double PIECES_PER_CELL = 2;
+
+	private final Segment[] segments;
+	private final GeometryStore geometry;
+	private final double minX, minY, cellSize;
+	private final int cols, rows;
+	// the pieces in cell c are (pieceSegment[i], piecePoint[i]) for
+	// cellStart[c] <= i < cellStart[c + 1]; a piece runs from point
+	// piecePoint to piecePoint + 1 of its segment
+	private final int[] cellStart;
+	private int[] pieceSegment, piecePoint;
+
+	public SegmentIndex(Collection<Segment> segments) {
+		this.segments = segments.toArray(new Segment[segments.size()]);
+		this.geometry = this.segments.length == 0 ? null : this.segments[0].geometry;
+
+		// the shape of the segment being looked at, as x, y pairs
+		double[] xy = new double[16];
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		int pieces = 0;
+		for (Segment s : this.segments) {
+			xy = shape(s, xy);
+			int n = geometry.decode(s.segmentID, xy);
+			for (int i = 0; i < n; i++) {
+				minX = Math.min(minX, xy[2 * i]);
+				minY = Math.min(minY, xy[2 * i + 1]);
+				maxX = Math.max(maxX, xy[2 * i]);
+				maxY = Math.max(maxY, xy[2 * i + 1]);
+			}
+			pieces += Math.max(0, n - 1);
+		}
+		if (pieces == 0) {
+			minX = minY = 0;
+			maxX = maxY = 1;
+		}
+		double area = Math.max(maxX - minX, 1e-6) * Math.max(maxY - minY, 1e-6);
+		this.cellSize = Math.sqrt(area * PIECES_PER_CELL / Math.max(pieces, 1));
+		this.minX = minX;
+		this.minY = minY;
+		this.cols = (int) ((maxX - minX) / cellSize) + 1;
+		this.rows = (int) ((maxY - minY) / cellSize) + 1;
+
+		// count the pieces in each cell, then fill them in
+		cellStart = new int[cols * rows + 1];
+		for (int pass = 0; pass < 2; pass++) {
+			int[] fill = pass == 0 ? null : Arrays.copyOf(cellStart, cellStart.length - 1);
+			for (int s = 0; s < this.segments.length; s++) {
+				xy = shape(this.segments[s], xy);
+				int n = geometry.decode(this.segments[s].segmentID, xy);
+				for (int i = 0; i + 1 < n; i++) {
+					double ax = xy[2 * i], ay = xy[2 * i + 1], bx = xy[2 * i + 2], by = xy[2 * i + 3];
+					int c0 = col(Math.min(ax, bx)), c1 = col(Math.max(ax, bx));
+					int r0 = row(Math.min(ay, by)), r1 = row(Math.max(ay, by));
+					for (int r = r0; r <= r1; r++) {
+						for (int c = c0; c <= c1; c++) {
+							if (pass == 0) {
+								cellStart[r * cols + c + 1]++;
+							} else {
+								int at = fill[r * cols + c]++;
+								pieceSegment[at] = s;
+								piecePoint[at] = i;
+							}
+						}
+					}
+				}
+			}
+			if (pass == 0) {
+				for (int c = 0; c < cols * rows; c++)
+					cellStart[c + 1] += cellStart[c];
+				pieceSegment = new int[cellStart[cols * rows]];
+				piecePoint = new int[cellStart[cols * rows]];
+			}
+		}
+	}
+
+	/**
+	 * Returns xy, or a bigger array if the shape of s won't fit in it.
+	 */
+	private double[] shape(Segment s, double[] xy) {
+		int n = geometry.count(s.segmentID);
+		return 2 * n <= xy.length ? xy : new double[4 * n];
+	}
+
+	private int col(double x) {
+		return Math.max(0, Math.min(cols - 1, (int) ((x - minX) / cellSize)));
+	}
+
+	private int row(double y) {
+		return Math.max(0, Math.min(rows - 1, (int) ((y - minY) / cellSize)));
+	}
+
+	/**
+	 * Returns the segment nearest to the given location, or null if there are
+	 * no segments at all.
+	 */
+	public SegmentMatch nearest(Location loc) {
+		int c = col(loc.x), r = row(loc.y);
+		int bestPiece = -1;
+		double[] ab = new double[4];
+		double best = Double.MAX_VALUE;	// squared distance, to save the square roots
+		int maxRing = Math.max(cols, rows);
+		for (int ring = 0; ring <= maxRing; ring++) {
+			for (int rr = r - ring; rr <= r + ring; rr++) {
+				if (rr < 0 || rr >= rows)
+					continue;
+				// on the top and bottom rows of the ring take every cell,
+				// otherwise only the two at the sides
+				int step = (rr == r - ring || rr == r + ring) ? 1 : Math.max(1, 2 * ring);
+				for (int cc = c - ring; cc <= c + ring; cc += step) {
+					if (cc < 0 || cc >= cols)
+						continue;
+					int cell = rr * cols + cc;
+					for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+						double d = squaredDistance(loc, pieceSegment[i], piecePoint[i], ab);
+						if (d < best) {
+							best = d;
+							bestPiece = i;
+						}
+					}
+				}
+			}
+			// anything in the next ring out is at least this far away
+			double reach = ring * cellSize + distanceIntoCell(loc, c, r);
+			if (bestPiece >= 0 && best <= reach * reach)
+				break;
+		}
+		return bestPiece < 0 ? null : project(loc, pieceSegment[bestPiece], piecePoint[bestPiece], ab);
+	}
+
+	/**
+	 * Returns the shortest distance from loc to the edge of the cell it's in.
+	 */
+	private double distanceIntoCell(Location loc, int c, int r) {
+		double left = loc.x - (minX + c * cellSize), bottom = loc.y - (minY + r * cellSize);
+		double d = Math.min(Math.min(left, cellSize - left), Math.min(bottom, cellSize - bottom));
+		return Math.max(0, d);
+	}
+
+	/**
+	 * Returns every segment that comes within radius of the given location,
+	 * each with its closest point, nearest first.
+	 */
+	public List<SegmentMatch> within(Location loc, double radius) {
+		int c0 = col(loc.x - radius), c1 = col(loc.x + radius);
+		int r0 = row(loc.y - radius), r1 = row(loc.y + radius);
+		List<SegmentMatch> found = new ArrayList<>();
+		double[] ab = new double[4];
+		for (int r = r0; r <= r1; r++) {
+			for (int c = c0; c <= c1; c++) {
+				int cell = r * cols + c;
+				for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+					SegmentMatch m = project(loc, pieceSegment[i], piecePoint[i], ab);
+					if (m.distance > radius)
+						continue;
+					// keep only the closest piece of each segment
+					boolean seen = false;
+					for (int j = 0; j < found.size(); j++) {
+						if (found.get(j).segment == m.segment) {
+							seen = true;
+							if (m.distance < found.get(j).distance)
+								found.set(j, m);
+						}
+					}
+					if (!seen)
+						found.add(m);
+				}
+			}
+		}
+		found.sort((a, b) -> Double.compare(a.distance, b.distance));
+		return found;
+	}
+
+	/**
+	 * Finds the nearest segment to each of a batch of locations, spread across
+	 * all the cores.
+	 */
+	public SegmentMatch[] nearestAll(Location[] locs) {
+		SegmentMatch[] matches = new SegmentMatch[locs.length];
+		IntStream.range(0, locs.length).parallel().forEach(i -> matches[i] = nearest(locs[i]));
+		return matches;
+	}
+
+	/**
+	 * Returns the squared distance from loc to the piece of segment s starting
+	 * at point i. ab is somewhere to decode the piece into.
+	 */
+	private double squaredDistance(Location loc, int s, int i, double[] ab) {
+		geometry.piece(segments[s].segmentID, i, ab);
+		double ax = ab[0], ay = ab[1], dx = ab[2] - ax, dy = ab[3] - ay;
+		double len2 = dx * dx + dy * dy;
+		double t = len2 == 0 ? 0 : ((loc.x - ax) * dx + (loc.y - ay) * dy) / len2;
+		t = Math.max(0, Math.min(1, t));
+		double ex = ax + t * dx - loc.x, ey = ay + t * dy - loc.y;
+		return ex * ex + ey * ey;
+	}
+
+	/**
+	 * Projects loc onto the piece of segment s starting at point i.
+	 */
+	private SegmentMatch project(Location loc, int s, int i, double[] ab) {
+		Segment seg = segments[s];
+		geometry.piece(seg.segmentID, i, ab);
+		double ax = ab[0], ay = ab[1], dx = ab[2] - ax, dy = ab[3] - ay;
+		double len2 = dx * dx + dy * dy;
+		double t = len2 == 0 ? 0 : ((loc.x - ax) * dx + (loc.y - ay) * dy) / len2;
+		t = Math.max(0, Math.min(1, t));
+		Location p = new Location(ax + t * dx, ay + t * dy);
+		return new SegmentMatch(seg, i, t, p, loc.distance(p));
+	}
+
+	/**
+	 * Where a location falls on a segment: the closest point on it, how far
+	 * away that is, and how far along the segment it is.
+	 */
+	public static class SegmentMatch {
+		public final Segment segment;
+		public final Location point;
+		public final double distance;
+		// the closest point is fraction t of the way along the piece of the
+		// segment's polyline that starts at point number piece
+		final int piece;
+		final double t;
+
+		SegmentMatch(Segment segment, int piece, double t, Location point, double distance) {
+			this.segment = segment;
+			this.piece = piece;
+			this.t = t;
+			this.point = point;
+			this.distance = distance;
+		}
+
+		/**
+		 * Returns how far along the segment's shape the point is, from 0 at
+		 * its start to 1 at its end.
+		 */
+		public double fraction() {
+			double[] xy = segment.geometry.coordinates(segment.segmentID);
+			double before = 0, total = 0;
+			for (int i = 0; i + 2 < xy.length; i += 2) {
+				double d = Math.hypot(xy[i + 2] - xy[i], xy[i + 3] - xy[i + 1]);
+				if (i / 2 < piece)
+					before += d;
+				else if (i / 2 == piece)
+					before += t * d;
+				total += d;
+			}
+			return total == 0 ? 0 : before / total;
+		}
+
+		/**
+		 * Returns how far the point is from the start of the segment, in the
+		 * same units as Segment.length.
+		 */
+		public double offset() {
+			return fraction() * segment.length;
+		}
+
+		public String toString() {
+			return String.format("%s, %.3fkm along %s, %.3fkm away", segment.road, offset(), segment, distance);
+		}
+	}
+}
@@ -0,0 +1,268 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How fast traffic moves on each road through the day, for routing that
+ * depends on when you leave. A profile gives the fraction of the speed limit
+ * traffic actually makes at each hour (eg. 0.4 on a motorway at 8am), and
+ * profiles are given per road class, or per road to override its class, in
+ * speed-profiles.tab next to the data files:
+ *
+ * kind	id	0	1	...	23
+ * class	4	0.95	0.95	...	0.9
+ * road	1234	1	1	...	1
+ *
+ * Between the hours the fraction changes linearly, and it wraps around at
+ * midnight. Roads with no profile, or data without the file, go at the speed
+ * limit all day.
+ *
+ * The profiles are kept compact whatever the size of the graph. Hourly
+ * values that lie on a straight line between their neighbours are dropped,
+ * so a flat profile is one point, and identical profiles are stored once.
+ * All that is kept per segment is the number of its profile.
+ *
+ * Times are in minutes since midnight, as doubles, so a route can run past
+ * midnight into the next day.
+ *
+ */
+public class SpeedProfiles {
+	public static final String FILENAME = "speed-profiles.tab";
+	private static final int HOURS = 24, DAY = HOURS * 60;
+	// how far off a straight line an hourly value can be and still be dropped
+	private static final double TOLERANCE = 1e-4;
+
+	// the points of profile p are (minute[i], factor[i]) for
+	// start[p] <= i < start[p + 1], in order of time. profile 0 is flat at
+	// the speed limit.
+	private final int[] start;
+	private final short[] minute;
+	private final float[] factor;
+	private final int[] profileOf;	// by segment ID
+
+	private SpeedProfiles(List<float[]> profiles, int[] profileOf) {
+		this.profileOf = profileOf;
+		start = new int[profiles.size() + 1];
+		List<Integer> minutes = new ArrayList<>();
+		List<Float> factors = new ArrayList<>();
+		for (int p = 0; p < profiles.size(); p++) {
+			float[] hourly = profiles.get(p);
+			for (int h = 0; h < HOURS; h++) {
+				// keep the hour unless it's on the line through the hours
+				// either side of it. a flat profile keeps its last hour, so
+				// there's always a point.
+				float before = hourly[(h + HOURS - 1) % HOURS], after = hourly[(h + 1) % HOURS];
+				boolean straight = Math.abs(hourly[h] - (before + after) / 2) < TOLERANCE;
+				if (!straight || (h == HOURS - 1 && minutes.size() == start[p])) {
+					minutes.add(h * 60);
+					factors.add(hourly[h]);
+				}
+			}
+			start[p + 1] = minutes.size();
+		}
+		minute = new short[minutes.size()];
+		factor = new float[factors.size()];
+		for (int i = 0; i < minute.length; i++) {
+			minute[i] = (short) (int) minutes.get(i);
+			factor[i] = factors.get(i);
+		}
+	}
+
+	/**
+	 * Reads the profiles for the given graph from the file, or gives every
+	 * road the speed limit all day if there's no such file.
+	 */
+	public static SpeedProfiles load(File file, Graph graph) {
+		Map<Integer, float[]> byClass = new HashMap<>(), byRoad = new HashMap<>();
+		if (file.isFile()) {
+			try {
+				BufferedReader br = new BufferedReader(new FileReader(file));
+				br.readLine(); // throw away the top line of the file.
+				String line;
+				while ((line = br.readLine()) != null) {
+					if (line.trim().isEmpty())
+						continue;
+					String[] tokens = line.split("[\t]+");
+					if (tokens.length != HOURS + 2)
+						throw new IllegalArgumentException("speed profile needs " + HOURS + " hours: " + line);
+					float[] hourly = new float[HOURS];
+					for (int h = 0; h < HOURS; h++) {
+						hourly[h] = Float.parseFloat(tokens[h + 2]);
+						if (!(hourly[h] > 0))
+							throw new IllegalArgumentException("speeds in a profile must be above zero: " + line);
+					}
+					int id = Integer.parseInt(tokens[1]);
+					if (tokens[0].equals("class"))
+						byClass.put(id, hourly);
+					else if (tokens[0].equals("road"))
+						byRoad.put(id, hourly);
+					else
+						throw new IllegalArgumentException("profile kind should be class or road: " + line);
+				}
+				br.close();
+			} catch (IOException e) {
+				throw new RuntimeException("file reading failed.");
+			}
+		}
+
+		// number the distinct profiles, with the flat one first
+		List<float[]> profiles = new ArrayList<>();
+		Map<String, Integer> numbers = new HashMap<>();
+		float[] flat = new float[HOURS];
+		Arrays.fill(flat, 1);
+		profiles.add(flat);
+		numbers.put(Arrays.toString(flat), 0);
+
+		int maxID = -1;
+		for (Segment s : graph.segments)
+			maxID = Math.max(maxID, s.segmentID);
+		int[] profileOf = new int[maxID + 1];
+		for (Segment s : graph.segments) {
+			float[] hourly = byRoad.get(s.road.roadID);
+			if (hourly == null)
+				hourly = byClass.get(s.road.roadClass);
+			if (hourly == null)
+				continue;
+			Integer p = numbers.get(Arrays.toString(hourly));
+			if (p == null) {
+				p = profiles.size();
+				profiles.add(hourly);
+				numbers.put(Arrays.toString(hourly), p);
+			}
+			profileOf[s.segmentID] = p;
+		}
+		return new SpeedProfiles(profiles, profileOf);
+	}
+
+	/**
+	 * Returns the fraction of the speed limit that traffic makes on the given
+	 * segment at the given time.
+	 */
+	public double factor(Segment s, double time) {
+		int p = profileOf[s.segmentID];
+		int first = start[p], last = start[p + 1] - 1;
+		double t = time - Math.floor(time / DAY) * DAY;
+		if (t < minute[first])
+			t += DAY;
+		int i = piece(first, last, t);
+		return factor[i] + slope(i, first, last) * (t - minute[i]);
+	}
+
+	/**
+	 * Returns when you get to the end of the segment if you set off along it
+	 * at the given time, having driven cost km (its length, unless the
+	 * traffic overlay says otherwise) at the speeds in its profile.
+	 *
+	 * The speed is integrated over time rather than taken at the moment you
+	 * leave, so setting off later never gets you there earlier, which is
+	 * what lets Dijkstra work on these times.
+	 */
+	public double arrival(Segment s, double cost, double time) {
+		int p = profileOf[s.segmentID];
+		int first = start[p], last = start[p + 1] - 1;
+		double perMinute = s.road.speedLimit() / 60.0;	// km a minute at the full limit
+
+		// t is the time of day, pushed on a day if it's before the
+		// profile's first point so that it falls in one of its pieces
+		double day = Math.floor(time / DAY) * DAY;
+		double t = time - day, left = cost;
+		if (t < minute[first]) {
+			t += DAY;
+			day -= DAY;
+		}
+		int i = piece(first, last, t);
+		while (true) {
+			double slope = slope(i, first, last);
+			double f = factor[i] + slope * (t - minute[i]);
+			double end = i < last ? minute[i + 1] : minute[first] + DAY;
+			// distance covered if we drive to the end of this piece
+			double span = end - t;
+			double covered = perMinute * (f * span + slope * span * span / 2);
+			if (covered >= left) {
+				// solve slope/2 x^2 + f x = left / perMinute for x, in the form
+				// that's still fine when slope is zero
+				double d = left / perMinute;
+				double x = 2 * d / (f + Math.sqrt(Math.max(0, f * f + 2 * slope * d)));
+				return day + t + x;
+			}
+			left -= covered;
+			t = end;
+			if (i < last) {
+				i++;
+			} else {
+				i = first;
+				t -= DAY;
+				day += DAY;
+			}
+		}
+	}
+
+	/**
+	 * Returns the travel times to use with Dijkstra for the given overlay.
+	 * Closed segments and roads that aren't for cars can't be used.
+	 */
+	public Dijkstra.TravelTime travelTime(TrafficOverlay costs) {
+		return (s, time) -> {
+			double cost = costs.cost(s);
+			if (cost == Double.POSITIVE_INFINITY || s.road.notForCar == 1)
+				return Double.POSITIVE_INFINITY;
+			return arrival(s, cost, time);
+		};
+	}
+
+	/**
+	 * Returns how many minutes it takes to drive the route, setting off at
+	 * the given time.
+	 */
+	public double duration(Route route, double departure, TrafficOverlay costs) {
+		Dijkstra.TravelTime travel = travelTime(costs);
+		double time = departure;
+		for (Segment s : route.segments)
+			time = travel.arrival(s, time);
+		return time - departure;
+	}
+
+	/**
+	 * Returns the last point of the profile at or before minute t, which is
+	 * no earlier than its first point.
+	 */
+	private int piece(int first, int last, double t) {
+		int i = first;
+		for (int k = first + 1; k <= last; k++) {
+			if (minute[k] <= t)
+				i = k;
+			else
+				break;
+		}
+		return i;
+	}
+
+	/**
+	 * Returns the change in factor per minute from point i to the next.
+	 */
+	private double slope(int i, int first, int last) {
+		if (first == last)
+			return 0;
+		int next = i < last ? i + 1 : first;
+		double span = i < last ? minute[next] - minute[i] : DAY - minute[i] + minute[next];
+		return (factor[next] - factor[i]) / span;
+	}
+
+	/**
+	 * Returns roughly how many bytes the profiles take.
+	 */
+	public long bytes() {
+		return 4L * start.length + 6L * minute.length + 4L * profileOf.length;
+	}
+
+	public String toString() {
+		return String.format("%d speed profiles, %d points, %.1f KB", start.length - 1, minute.length,
+				bytes() / 1024.0);
+	}
+}
@@ -0,0 +1,196 @@
+import java.awt.Graphics;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A real street is usually split into many Road objects with the same name.
+ * The StreetIndex groups them back together by name and city, so that a street
+ * can be found with a single lookup, and chains all of the street's segments
+ * end to end up front. Only segment IDs are kept, so the shapes stay off the
+ * heap in the GeometryStore.
+ *
+ */
+public class StreetIndex {
+	private final Map<String, Street> streets = new HashMap<>();
+	private final Map<String, List<Street>> byName = new HashMap<>();
+
+	public StreetIndex(Collection<Road> roads) {
+		Map<String, List<Road>> groups = new HashMap<>();
+		for (Road road : roads) {
+			// if we don't have any data on the road, leave it out.
+			if (road.name.equals("-"))
+				continue;
+			String key = key(road.name, road.city);
+			List<Road> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<>();
+				groups.put(key, group);
+			}
+			group.add(road);
+		}
+
+		for (Map.Entry<String, List<Road>> e : groups.entrySet()) {
+			Street street = new Street(e.getValue());
+			streets.put(e.getKey(), street);
+			String name = street.name.toLowerCase();
+			List<Street> named = byName.get(name);
+			if (named == null) {
+				named = new ArrayList<>(1);
+				byName.put(name, named);
+			}
+			named.add(street);
+		}
+	}
+
+	private static String key(String name, String city) {
+		return name.toLowerCase() + "\t" + city.toLowerCase();
+	}
+
+	/**
+	 * Returns the street with the given name in the given city, or null.
+	 */
+	public Street get(String name, String city) {
+		return streets.get(key(name, city));
+	}
+
+	/**
+	 * Returns every street with the given name, in any city.
+	 */
+	public List<Street> byName(String name) {
+		List<Street> named = byName.get(name.toLowerCase());
+		return named == null ? new ArrayList<Street>() : named;
+	}
+
+	public Collection<Street> all() {
+		return streets.values();
+	}
+
+	/**
+	 * A Street is every Road with the same name in the same city, along with
+	 * its segments chained end to end.
+	 */
+	public static class Street {
+		public final String name, city;
+		public final List<Road> roads;
+		public final int[] roadIDs;
+		public final double length;
+		// the segments in chains joined end to end, by segment ID, and whether
+		// each is walked from its start to its end. the shapes stay in the
+		// geometry store.
+		final int[] segmentIDs;
+		final boolean[] forward;
+		// where each chain starts in segmentIDs, and then its length
+		final int[] chains;
+		final GeometryStore geometry;
+
+		Street(List<Road> roads) {
+			this.name = roads.get(0).name;
+			this.city = roads.get(0).city;
+			this.roads = roads;
+			this.roadIDs = new int[roads.size()];
+			double length = 0;
+			List<Segment> segments = new ArrayList<>();
+			for (int i = 0; i < roads.size(); i++) {
+				roadIDs[i] = roads.get(i).roadID;
+				for (Segment s : roads.get(i).components) {
+					segments.add(s);
+					length += s.length;
+				}
+			}
+			this.length = length;
+			this.geometry = segments.isEmpty() ? null : segments.get(0).geometry;
+			this.segmentIDs = new int[segments.size()];
+			this.forward = new boolean[segments.size()];
+			this.chains = merge(segments);
+		}
+
+		/**
+		 * Joins segments into chains. Chains start at nodes where the street
+		 * ends or branches (anything but two of its segments), and run through
+		 * nodes with exactly two; whatever is left over is loops. Returns
+		 * where each chain starts.
+		 */
+		private int[] merge(List<Segment> segments) {
+			// in the order of the roads, so the chains don't depend on hash codes
+			Map<Node, List<Segment>> touching = new LinkedHashMap<>();
+			for (Segment s : segments) {
+				for (Node n : new Node[] { s.start, s.end }) {
+					List<Segment> list = touching.get(n);
+					if (list == null) {
+						list = new ArrayList<>(2);
+						touching.put(n, list);
+					}
+					list.add(s);
+				}
+			}
+
+			Set<Segment> used = new HashSet<>();
+			List<Integer> starts = new ArrayList<>();
+			int count = 0;
+			for (int pass = 0; pass < 2; pass++) {
+				for (Map.Entry<Node, List<Segment>> e : touching.entrySet()) {
+					// first pass: only start at ends and branches
+					if (pass == 0 && e.getValue().size() == 2)
+						continue;
+					for (Segment first : e.getValue()) {
+						if (!used.contains(first)) {
+							starts.add(count);
+							count = chain(e.getKey(), first, touching, used, count);
+						}
+					}
+				}
+			}
+			starts.add(count);
+			int[] chains = new int[starts.size()];
+			for (int i = 0; i < chains.length; i++)
+				chains[i] = starts.get(i);
+			return chains;
+		}
+
+		/**
+		 * Follows a chain from the given node, adding its segments from
+		 * position count on, and returns the position after them.
+		 */
+		private int chain(Node from, Segment first, Map<Node, List<Segment>> touching, Set<Segment> used,
+				int count) {
+			Node at = from;
+			Segment seg = first;
+			while (seg != null) {
+				used.add(seg);
+				// segment points run from start to end, so they're walked
+				// backwards if we came in at the end
+				forward[count] = seg.start == at;
+				segmentIDs[count++] = seg.segmentID;
+				at = forward[count - 1] ? seg.end : seg.start;
+
+				// carry on only through nodes where the street just continues
+				seg = null;
+				List<Segment> next = touching.get(at);
+				if (next.size() == 2) {
+					for (Segment s : next)
+						if (!used.contains(s))
+							seg = s;
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * Draws the street's segments straight from the geometry store.
+		 */
+		public void draw(Graphics g, Location origin, double scale) {
+			for (int id : segmentIDs)
+				geometry.draw(g, id, origin, scale);
+		}
+
+		public String toString() {
+			return name + ", " + city;
+		}
+	}
+}
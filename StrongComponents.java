@@ -0,0 +1,209 @@
+import java.util.Arrays;
+
+/**
+ * Labels every node with its strongly connected component: the largest set
+ * of nodes that can all drive to each other, one way roads included. It is
+ * worked out once when the graph is loaded, with an iterative version of
+ * Tarjan's algorithm on primitive arrays.
+ *
+ * Tarjan's algorithm finishes the components in reverse topological order,
+ * so a segment from u to v always has component[u] >= component[v]. Along
+ * with the weakly connected components (which ignore the direction of roads)
+ * that gives two checks that take no time at all:
+ *
+ * - the goal can't be reached if it's in a different weak component, or if
+ * its component number is higher than the start's;
+ *
+ * - a node can only be on a route from start to goal if its component number
+ * is between theirs, so when they're in the same component a search never
+ * needs to leave it.
+ *
+ * Closing segments only takes routes away, so both checks stay true while
+ * the traffic overlay changes, and the labels don't need recomputing.
+ *
+ */
+public class StrongComponents {
+	final int[] component;	// by node index, in reverse topological order
+	final int[] weak;		// weakly connected component, by node index
+	final int[] sizes;		// nodes in each strongly connected component
+	int count, weakCount, largest;
+
+	public StrongComponents(Graph graph) {
+		Node[] nodes = graph.nodeArray;
+		int n = nodes.length;
+
+		// out neighbours in compressed form: the nodes v leads to are
+		// adjNode[adjStart[v]] .. adjNode[adjStart[v + 1] - 1]
+		int[] adjStart = new int[n + 1];
+		for (Node v : nodes)
+			adjStart[v.index + 1] = v.outNeighbours.size();
+		for (int v = 0; v < n; v++)
+			adjStart[v + 1] += adjStart[v];
+		int[] adjNode = new int[adjStart[n]];
+		for (Node v : nodes) {
+			int at = adjStart[v.index];
+			for (Segment s : v.outNeighbours)
+				adjNode[at++] = s.end.index;
+		}
+
+		component = new int[n];
+		weak = new int[n];
+		tarjan(adjStart, adjNode);
+
+		int[] sizes = new int[count];
+		for (int v = 0; v < n; v++)
+			sizes[component[v]]++;
+		this.sizes = sizes;
+		for (int c = 0; c < count; c++)
+			if (sizes[c] > sizes[largest])
+				largest = c;
+
+		weakComponents(adjStart, adjNode);
+	}
+
+	private void tarjan(int[] adjStart, int[] adjNode) {
+		int n = component.length;
+		// disc[v] is the order v was found in, 0 if not yet; low[v] the
+		// earliest node on the stack v's subtree reaches
+		int[] disc = new int[n], low = new int[n], next = new int[n];
+		int[] dfsStack = new int[n], nodeStack = new int[n];
+		boolean[] onStack = new boolean[n];
+		int time = 0;
+
+		for (int root = 0; root < n; root++) {
+			if (disc[root] != 0)
+				continue;
+			int depth = 0, stacked = 0;
+			dfsStack[depth++] = root;
+			disc[root] = low[root] = ++time;
+			next[root] = adjStart[root];
+			nodeStack[stacked++] = root;
+			onStack[root] = true;
+
+			while (depth > 0) {
+				int v = dfsStack[depth - 1];
+				if (next[v] < adjStart[v + 1]) {
+					int w = adjNode[next[v]++];
+					if (disc[w] == 0) {
+						disc[w] = low[w] = ++time;
+						next[w] = adjStart[w];
+						nodeStack[stacked++] = w;
+						onStack[w] = true;
+						dfsStack[depth++] = w;
+					} else if (onStack[w]) {
+						low[v] = Math.min(low[v], disc[w]);
+					}
+					continue;
+				}
+
+				// done with v: pop its component if it's the root of one
+				depth--;
+				if (low[v] == disc[v]) {
+					int w;
+					do {
+						w = nodeStack[--stacked];
+						onStack[w] = false;
+						component[w] = count;
+					} while (w != v);
+					count++;
+				}
+				if (depth > 0) {
+					int parent = dfsStack[depth - 1];
+					low[parent] = Math.min(low[parent], low[v]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Labels the weakly connected components, with a union-find over the
+	 * segments.
+	 */
+	private void weakComponents(int[] adjStart, int[] adjNode) {
+		int n = weak.length;
+		int[] parent = new int[n];
+		for (int v = 0; v < n; v++)
+			parent[v] = v;
+		for (int v = 0; v < n; v++) {
+			for (int i = adjStart[v]; i < adjStart[v + 1]; i++) {
+				int a = find(parent, v), b = find(parent, adjNode[i]);
+				if (a != b)
+					parent[a] = b;
+			}
+		}
+		int[] label = new int[n];
+		Arrays.fill(label, -1);
+		for (int v = 0; v < n; v++) {
+			int root = find(parent, v);
+			if (label[root] < 0)
+				label[root] = weakCount++;
+			weak[v] = label[root];
+		}
+	}
+
+	private static int find(int[] parent, int v) {
+		while (parent[v] != v) {
+			parent[v] = parent[parent[v]];	// halve the path as we go
+			v = parent[v];
+		}
+		return v;
+	}
+
+	/**
+	 * Returns true if there's certainly no route from one node to the other.
+	 * A false answer doesn't promise a route, though it nearly always means
+	 * one.
+	 */
+	public boolean cannotReach(Node from, Node to) {
+		return weak[from.index] != weak[to.index] || component[from.index] < component[to.index];
+	}
+
+	/**
+	 * Returns true if node v, found searching out from node from, could be
+	 * on a route on to node to. All three are node indices.
+	 */
+	public boolean mayPassThrough(int v, int from, int to) {
+		int c = component[v];
+		return c <= component[from] && c >= component[to];
+	}
+
+	public int componentOf(Node node) {
+		return component[node.index];
+	}
+
+	/**
+	 * Returns the number of nodes in the given component.
+	 */
+	public int size(int component) {
+		return sizes[component];
+	}
+
+	public int count() {
+		return count;
+	}
+
+	public int weakCount() {
+		return weakCount;
+	}
+
+	/**
+	 * Returns the component with the most nodes in it.
+	 */
+	public int largest() {
+		return largest;
+	}
+
+	/**
+	 * Describes the component a node is in, for showing with it.
+	 */
+	public String describe(Node node) {
+		int c = component[node.index];
+		return String.format("strongly connected component %d of %d, with %d of the %d nodes%s", c + 1, count,
+				sizes[c], component.length, c == largest ? " (the largest)" : "");
+	}
+
+	public String toString() {
+		return String.format("%d strongly connected components (%d weakly), the largest with %d of %d nodes",
+				count, weakCount, count == 0 ? 0 : sizes[largest], component.length);
+	}
+}
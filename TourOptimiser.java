@@ -0,0 +1,379 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Finds a good order to visit a list of stops in, eg. for a courier's shift,
+ * and the route that visits them. The first stop is where the tour starts,
+ * and for a round trip where it ends too.
+ *
+ * First the road distance from every stop to every other is worked out, with
+ * a Dijkstra search from each stop in parallel. One way roads make these
+ * distances differ each way, so the order is then improved as an asymmetric
+ * travelling salesman tour, with two kinds of local move:
+ *
+ * - 2-opt, which reverses a stretch of the tour. With one way roads the
+ * reversed stretch costs something different, so the tour keeps running
+ * totals both ways round and the change in cost is still found in constant
+ * time.
+ *
+ * - Or-opt, which moves a chain of up to three stops somewhere else in the
+ * tour, either way round.
+ *
+ * When neither finds an improvement the best tour so far is given a random
+ * double bridge kick and improved again (iterated local search). One of
+ * these runs on each core, each with its own random numbers, until the time
+ * budget is used up, and the best tour any of them found is the answer.
+ *
+ * java TourOptimiser data-directory stops-file [budget-ms]
+ *
+ */
+public class TourOptimiser {
+	public static final long DEFAULT_BUDGET = 2000;	// milliseconds
+	// longest chain of stops an Or-opt move shifts
+	private static final int MAX_CHAIN = 3;
+	// stands in for a distance that can't be driven, so the sums stay finite
+	private static final double UNREACHABLE = 1e9;
+
+	/**
+	 * The stops in the order to visit them, and the route that does so.
+	 */
+	public static class Tour {
+		public final List<Node> stops;	// ends with the first stop again for a round trip
+		public final Route route;
+		public final int rounds;		// local searches run across all the threads
+		public final long matrixMillis, searchMillis;
+
+		Tour(List<Node> stops, Route route, int rounds, long matrixMillis, long searchMillis) {
+			this.stops = stops;
+			this.route = route;
+			this.rounds = rounds;
+			this.matrixMillis = matrixMillis;
+			this.searchMillis = searchMillis;
+		}
+
+		public String toString() {
+			return String.format("%d stops, %.3f km, distances in %d ms, %d local searches in %d ms",
+					stops.size(), route.length, matrixMillis, rounds, searchMillis);
+		}
+	}
+
+	/**
+	 * Orders the stops, spending about budget milliseconds improving the
+	 * order once the distances are known. Throws IllegalArgumentException if
+	 * there is no order the stops can be driven in at all.
+	 */
+	public static Tour optimise(Graph graph, List<Node> stops, boolean roundTrip, long budget, long seed) {
+		if (stops.isEmpty())
+			throw new IllegalArgumentException("no stops to visit");
+		// the same costs as the route between two intersections
+		TrafficOverlay costs = graph.overlay();
+		Dijkstra.Weight weight = costs::cost;
+
+		long begin = System.currentTimeMillis();
+		double[][] d = matrix(graph, stops, weight);
+		int n = stops.size();
+		for (int j = 1; j < n; j++) {
+			if (d[0][j] >= UNREACHABLE || (roundTrip && d[j][0] >= UNREACHABLE))
+				throw new IllegalArgumentException(String.format("there's no way between node %d and node %d",
+						stops.get(0).nodeID, stops.get(j).nodeID));
+		}
+		// the tour runs from stop 0 to an extra end stop n, which is stop 0
+		// again for a round trip, or anywhere for free otherwise
+		double[][] dist = new double[n + 1][n + 1];
+		for (int i = 0; i < n; i++) {
+			System.arraycopy(d[i], 0, dist[i], 0, n);
+			dist[i][n] = roundTrip ? d[i][0] : 0;
+		}
+		long searchBegin = System.currentTimeMillis();
+
+		long deadline = searchBegin + budget;
+		int workers = Math.max(1, Runtime.getRuntime().availableProcessors());
+		List<Search> searches = IntStream.range(0, workers).parallel()
+				.mapToObj(w -> new Search(dist, new Random(seed + w), w == 0).run(deadline))
+				.collect(Collectors.toList());
+		Search best = searches.stream().min(Comparator.comparingDouble(s -> s.bestCost)).get();
+		int rounds = searches.stream().mapToInt(s -> s.rounds).sum();
+		if (best.bestCost >= UNREACHABLE)
+			throw new IllegalArgumentException("there's no order the stops can all be driven in");
+		long searchEnd = System.currentTimeMillis();
+
+		// the route along each leg, found again now the order is known
+		List<Node> order = new ArrayList<>();
+		for (int k = 0; k < n; k++)
+			order.add(stops.get(best.best[k]));
+		if (roundTrip && n > 1)
+			order.add(stops.get(0));
+		ThreadLocal<Dijkstra> legs = ThreadLocal.withInitial(() -> new Dijkstra(graph));
+		List<List<Segment>> paths = IntStream.range(0, order.size() - 1).parallel().mapToObj(k -> {
+			Dijkstra dijkstra = legs.get();
+			dijkstra.run(order.get(k), order.get(k + 1), Double.POSITIVE_INFINITY, weight);
+			return dijkstra.pathTo(order.get(k + 1));
+		}).collect(Collectors.toList());
+		List<Segment> path = new ArrayList<>();
+		for (List<Segment> leg : paths)
+			path.addAll(leg);
+
+		return new Tour(order, new Route(path, stops.get(0), costs), rounds, searchBegin - begin,
+				searchEnd - searchBegin);
+	}
+
+	/**
+	 * Returns the distance from each stop to every other, searching from
+	 * each stop in parallel. Distances that can't be driven are UNREACHABLE.
+	 */
+	static double[][] matrix(Graph graph, List<Node> stops, Dijkstra.Weight weight) {
+		ThreadLocal<Dijkstra> searches = ThreadLocal.withInitial(() -> new Dijkstra(graph));
+		return stops.parallelStream().map(from -> {
+			Dijkstra dijkstra = searches.get();
+			dijkstra.run(from, stops, Double.POSITIVE_INFINITY, weight);
+			double[] row = new double[stops.size()];
+			for (int j = 0; j < row.length; j++)
+				row[j] = Math.min(UNREACHABLE, dijkstra.distance(stops.get(j)));
+			return row;
+		}).toArray(double[][]::new);
+	}
+
+	/**
+	 * One thread's iterated local search over the orders of the stops. Tours
+	 * are arrays of stop numbers with stop 0 first and the end stop last,
+	 * which never move.
+	 */
+	static class Search {
+		private final double[][] dist;
+		private final int n;	// the end stop, and the length of the tour less one
+		private final Random random;
+		// running totals along the tour being improved: forward[k] is the
+		// cost from position 0 to position k, backward[k] the cost of
+		// driving the same stretch the other way round
+		private final double[] forward, backward;
+
+		int[] best;
+		double bestCost;
+		int rounds;
+
+		Search(double[][] dist, Random random, boolean nearestNeighbour) {
+			this.dist = dist;
+			this.n = dist.length - 1;
+			this.random = random;
+			this.forward = new double[n + 1];
+			this.backward = new double[n + 1];
+			this.best = nearestNeighbour ? nearestNeighbour() : shuffled();
+		}
+
+		Search run(long deadline) {
+			int[] tour = best.clone();
+			improve(tour, deadline);
+			best = tour;
+			bestCost = cost(tour);
+			rounds = 1;
+			// double bridges need three stretches of at least one stop
+			while (n - 1 >= 3 && System.currentTimeMillis() < deadline) {
+				tour = doubleBridge(best);
+				improve(tour, deadline);
+				rounds++;
+				double c = cost(tour);
+				if (c < bestCost - 1e-9) {
+					best = tour;
+					bestCost = c;
+				}
+			}
+			return this;
+		}
+
+		private int[] nearestNeighbour() {
+			int[] tour = new int[n + 1];
+			boolean[] used = new boolean[n];
+			used[0] = true;
+			for (int k = 1; k < n; k++) {
+				int from = tour[k - 1], next = -1;
+				for (int j = 1; j < n; j++)
+					if (!used[j] && (next < 0 || dist[from][j] < dist[from][next]))
+						next = j;
+				tour[k] = next;
+				used[next] = true;
+			}
+			tour[n] = n;
+			return tour;
+		}
+
+		private int[] shuffled() {
+			int[] tour = new int[n + 1];
+			for (int k = 0; k <= n; k++)
+				tour[k] = k;
+			for (int k = n - 1; k > 1; k--) {
+				int j = 1 + random.nextInt(k);
+				int t = tour[k];
+				tour[k] = tour[j];
+				tour[j] = t;
+			}
+			return tour;
+		}
+
+		double cost(int[] tour) {
+			double c = 0;
+			for (int k = 0; k < n; k++)
+				c += dist[tour[k]][tour[k + 1]];
+			return c;
+		}
+
+		private void totals(int[] tour) {
+			for (int k = 0; k < n; k++) {
+				forward[k + 1] = forward[k] + dist[tour[k]][tour[k + 1]];
+				backward[k + 1] = backward[k] + dist[tour[k + 1]][tour[k]];
+			}
+		}
+
+		/**
+		 * Makes improving moves until there are none left, or time runs out.
+		 */
+		private void improve(int[] tour, long deadline) {
+			boolean improved = true;
+			while (improved && System.currentTimeMillis() < deadline) {
+				totals(tour);
+				improved = twoOpt(tour) || orOpt(tour);
+			}
+		}
+
+		/**
+		 * Makes the first 2-opt move found that shortens the tour, and returns
+		 * whether there was one.
+		 */
+		private boolean twoOpt(int[] t) {
+			for (int i = 1; i < n - 1; i++) {
+				for (int j = i + 1; j < n; j++) {
+					// reverse t[i..j]
+					double before = dist[t[i - 1]][t[i]] + (forward[j] - forward[i]) + dist[t[j]][t[j + 1]];
+					double after = dist[t[i - 1]][t[j]] + (backward[j] - backward[i]) + dist[t[i]][t[j + 1]];
+					if (after < before - 1e-9) {
+						reverse(t, i, j);
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Makes the first Or-opt move found that shortens the tour, and
+		 * returns whether there was one.
+		 */
+		private boolean orOpt(int[] t) {
+			for (int len = 1; len <= MAX_CHAIN; len++) {
+				for (int i = 1; i + len - 1 < n; i++) {
+					int last = i + len - 1;
+					double removed = dist[t[i - 1]][t[i]] + dist[t[last]][t[last + 1]] - dist[t[i - 1]][t[last + 1]];
+					// what turning the chain round does to the cost inside it
+					double turned = (backward[last] - backward[i]) - (forward[last] - forward[i]);
+					for (int p = 0; p < n; p++) {
+						if (p >= i - 1 && p <= last)
+							continue;
+						double gap = dist[t[p]][t[p + 1]];
+						double ahead = dist[t[p]][t[i]] + dist[t[last]][t[p + 1]] - gap;
+						if (ahead < removed - 1e-9) {
+							move(t, i, last, p, false);
+							return true;
+						}
+						double round = dist[t[p]][t[last]] + dist[t[i]][t[p + 1]] - gap + turned;
+						if (len > 1 && round < removed - 1e-9) {
+							move(t, i, last, p, true);
+							return true;
+						}
+					}
+				}
+			}
+			return false;
+		}
+
+		private static void reverse(int[] t, int i, int j) {
+			for (; i < j; i++, j--) {
+				int x = t[i];
+				t[i] = t[j];
+				t[j] = x;
+			}
+		}
+
+		/**
+		 * Moves the chain t[i..last] to between positions p and p + 1,
+		 * turning it round if asked.
+		 */
+		private static void move(int[] t, int i, int last, int p, boolean turn) {
+			int[] chain = Arrays.copyOfRange(t, i, last + 1);
+			if (turn)
+				reverse(chain, 0, chain.length - 1);
+			int len = chain.length;
+			if (p < i) {
+				// shift t[p + 1 .. i - 1] along to make room after p
+				System.arraycopy(t, p + 1, t, p + 1 + len, i - p - 1);
+				System.arraycopy(chain, 0, t, p + 1, len);
+			} else {
+				// shift t[last + 1 .. p] back into the chain's place
+				System.arraycopy(t, last + 1, t, i, p - last);
+				System.arraycopy(chain, 0, t, p - len + 1, len);
+			}
+		}
+
+		/**
+		 * Returns the tour cut into three stretches after the start, with the
+		 * middle two swapped over.
+		 */
+		private int[] doubleBridge(int[] t) {
+			// cut points 1 <= a < b < c <= n - 1
+			int a = 1 + random.nextInt(n - 3);
+			int b = a + 1 + random.nextInt(n - 2 - a);
+			int c = b + 1 + random.nextInt(n - 1 - b);
+			int[] kicked = new int[n + 1];
+			int k = 0;
+			for (int x = 0; x < a; x++)
+				kicked[k++] = t[x];
+			for (int x = b; x < c; x++)
+				kicked[k++] = t[x];
+			for (int x = a; x < b; x++)
+				kicked[k++] = t[x];
+			for (int x = c; x <= n; x++)
+				kicked[k++] = t[x];
+			return kicked;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2 || args.length > 3) {
+			System.err.println("usage: java TourOptimiser data-directory stops-file [budget-ms]");
+			return;
+		}
+		File dir = new File(args[0]);
+		Graph graph = new Graph(new File(dir, GUI.NODES_FILENAME), new File(dir, GUI.ROADS_FILENAME),
+				new File(dir, GUI.SEGS_FILENAME), null);
+
+		// one node ID per line, the first being where the tour starts
+		List<Node> stops = new ArrayList<>();
+		BufferedReader br = new BufferedReader(new FileReader(args[1]));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.trim().isEmpty())
+					continue;
+				Node node = graph.node(Integer.parseInt(line.trim()));
+				if (node == null)
+					throw new IllegalArgumentException("no node " + line.trim());
+				stops.add(node);
+			}
+		} finally {
+			br.close();
+		}
+
+		long budget = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_BUDGET;
+		Tour tour = optimise(graph, stops, true, budget, 1);
+		for (Node n : tour.stops)
+			System.out.println(n.nodeID);
+		System.err.println(tour);
+	}
+}
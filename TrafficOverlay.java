@@ -0,0 +1,91 @@
+import java.util.Arrays;
+
+/**
+ * A TrafficOverlay holds the live changes to the road network that routing
+ * has to respect: segments that are closed, and segments whose cost has been
+ * changed from their length (eg. slowed by roadworks). Overrides are kept per
+ * segment ID, so they apply to both directions of a two way road.
+ *
+ * Overlays are immutable. An update makes a new overlay, which the Graph then
+ * publishes atomically, so a route query just reads the current overlay once
+ * and sees one consistent set of changes without taking any locks. With no
+ * overrides there is no array at all and cost() is just the segment length.
+ *
+ */
+public final class TrafficOverlay {
+	public static final TrafficOverlay EMPTY = new TrafficOverlay(null, 0, 0);
+
+	// cost of each segment by segment ID; NaN where the length applies, and
+	// infinity where the segment is closed. null when there are no overrides.
+	private final double[] costs;
+	private final int overrides;
+	public final long version;
+
+	private TrafficOverlay(double[] costs, int overrides, long version) {
+		this.costs = costs;
+		this.overrides = overrides;
+		this.version = version;
+	}
+
+	/**
+	 * Returns the cost of travelling along the given segment, which is
+	 * Double.POSITIVE_INFINITY if it's closed.
+	 */
+	public double cost(Segment s) {
+		if (costs == null || s.segmentID >= costs.length)
+			return s.length;
+		double c = costs[s.segmentID];
+		return c != c ? s.length : c;	// c != c is true only for NaN
+	}
+
+	public boolean isClosed(Segment s) {
+		return cost(s) == Double.POSITIVE_INFINITY;
+	}
+
+	public boolean isEmpty() {
+		return overrides == 0;
+	}
+
+	public int size() {
+		return overrides;
+	}
+
+	/**
+	 * Returns a copy of this overlay where the given segment costs the given
+	 * amount. An infinite cost closes it.
+	 */
+	public TrafficOverlay withCost(Segment s, double cost) {
+		return with(s.segmentID, cost);
+	}
+
+	public TrafficOverlay withClosed(Segment s) {
+		return with(s.segmentID, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Returns a copy of this overlay where the given segment is back to normal.
+	 */
+	public TrafficOverlay without(Segment s) {
+		return with(s.segmentID, Double.NaN);
+	}
+
+	private TrafficOverlay with(int id, double cost) {
+		double[] copy;
+		if (costs == null) {
+			if (cost != cost)	// nothing to remove
+				return this;
+			copy = new double[id + 1];
+			Arrays.fill(copy, Double.NaN);
+		} else {
+			copy = Arrays.copyOf(costs, Math.max(costs.length, id + 1));
+			if (costs.length <= id)
+				Arrays.fill(copy, costs.length, copy.length, Double.NaN);
+		}
+
+		boolean had = copy[id] == copy[id];
+		boolean has = cost == cost;
+		copy[id] = cost;
+		int count = overrides + (has ? 1 : 0) - (had ? 1 : 0);
+		return new TrafficOverlay(count == 0 ? null : copy, count, version + 1);
+	}
+}
@@ -1,15 +1,39 @@
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 
+/**
+ * A compressed trie (radix tree) over the lowercased names of the roads. Each
+ * edge is labelled with a whole run of characters rather than one, so a name
+ * only costs a node where it branches off from the others, and each node keeps
+ * its children in a sorted array keyed by the first character of their label
+ * instead of a map of boxed Characters.
+ *
+ * For search-as-you-type, every node also caches the best few names below it,
+ * ranked by road class and then by total length, so completing a prefix only
+ * costs the walk down to it plus the length of the list.
+ *
+ * Misspelt queries can be matched with fuzzy(), which walks the trie carrying
+ * a row of the Levenshtein edit distance table, and gives up on a branch as
+ * soon as every entry in the row is over the allowed distance.
+ */
 public class Trie {
-	TrieNode root = new TrieNode();
+	// how many completions each node keeps
+	public static final int MAX_COMPLETIONS = 10;
+
+	TrieNode root = new TrieNode("");
+	// set when roads have been added since the completions were ranked
+	private boolean unranked = true;
 
 	public Trie(Collection<Road> roads) {
 		for (Road road : roads) {
 			add(road);
 		}
+		rank();
 	}
 
 	/**
@@ -20,64 +44,325 @@ public class Trie {
 		if (road.name.equals("-"))
 			return;
 
-		// traverse the trie using the name of the road. at each step, either a
-		// node already exists for that letter (if) or we need to make a new one
-		// (else).
+		// traverse the trie using the name of the road. at each step, either
+		// the rest of the name runs along an existing edge (possibly only part
+		// of the way, in which case the edge is split), or a new leaf is made
+		// for it.
+		String name = road.name.toLowerCase();
 		TrieNode node = this.root;
-		char[] name = road.name.toCharArray();
-		for (int i = 0; i < name.length; i++) {
-			if (node.children.containsKey(name[i])) {
-				node = node.children.get(name[i]);
-			} else {
-				TrieNode next = new TrieNode();
-				node.children.put(name[i], next);
-				node = next;
+		int i = 0;
+		while (i < name.length()) {
+			int k = node.find(name.charAt(i));
+			if (k < 0) {
+				TrieNode leaf = new TrieNode(name.substring(i));
+				node.insert(-k - 1, leaf);
+				node = leaf;
+				break;
+			}
+
+			TrieNode child = node.children[k];
+			int common = commonPrefix(child.label, name, i);
+			if (common < child.label.length()) {
+				// the name leaves this edge part way along, so split it
+				TrieNode mid = new TrieNode(child.label.substring(0, common));
+				child.label = child.label.substring(common);
+				mid.keys = new char[] { child.label.charAt(0) };
+				mid.children = new TrieNode[] { child };
+				node.children[k] = mid;
+				child = mid;
 			}
+			node = child;
+			i += common;
 		}
 
 		// finally, add a reference to the road to the terminal node of its
 		// name.
-		node.data.add(road);
+		node.data = Arrays.copyOf(node.data, node.data.length + 1);
+		node.data[node.data.length - 1] = road;
+		node.roadClass = Math.max(node.roadClass, road.roadClass);
+		for (Segment s : road.components)
+			node.length += s.length;
+		unranked = true;
 	}
 
 	/**
-	 * Returns all Roads whose names start with a given prefix.
+	 * Returns up to k of the best names starting with the given prefix, best
+	 * first. Names are ranked by their highest road class, then by the total
+	 * length of road with that name. k is capped at MAX_COMPLETIONS.
 	 */
-	public Collection<Road> get(String prefix) {
-		// first, traverse to the end of the prefix.
+	public List<String> complete(String prefix, int k) {
+		if (unranked)
+			rank();
+
+		List<String> names = new ArrayList<>();
+		TrieNode node = find(prefix.toLowerCase());
+		if (node == null)
+			return names;
+		for (int i = 0; i < node.top.length && i < k; i++)
+			names.add(node.top[i].data[0].name);
+		return names;
+	}
+
+	/**
+	 * Returns up to k names that start with something within maxDistance
+	 * edits (insertions, deletions or substitutions) of the query, closest
+	 * first, and then ranked as for complete(). k is capped at
+	 * MAX_COMPLETIONS.
+	 */
+	public List<String> fuzzy(String query, int maxDistance, int k) {
+		if (unranked)
+			rank();
+
+		String q = query.toLowerCase();
+		int[] row = new int[q.length() + 1];
+		for (int i = 0; i < row.length; i++)
+			row[i] = i;
+
+		Map<TrieNode, Integer> found = new HashMap<>();
+		if (row[q.length()] <= maxDistance)
+			note(root, row[q.length()], found);
+		for (TrieNode child : root.children)
+			fuzzy(child, q, row, maxDistance, found);
+
+		List<TrieNode> matches = new ArrayList<>(found.keySet());
+		matches.sort(new Comparator<TrieNode>() {
+			public int compare(TrieNode a, TrieNode b) {
+				int d = found.get(a) - found.get(b);
+				return d != 0 ? d : BEST_FIRST.compare(a, b);
+			}
+		});
+
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i < matches.size() && i < k; i++)
+			names.add(matches.get(i).data[0].name);
+		return names;
+	}
+
+	/**
+	 * Carries on the edit distance table along the edge into node, one row per
+	 * character. Whenever the whole query is within range of the name so far,
+	 * the best names below are noted at that distance.
+	 */
+	private static void fuzzy(TrieNode node, String q, int[] prev, int max,
+			Map<TrieNode, Integer> found) {
+		int m = q.length();
+		int[] row = prev;
+		for (int j = 0; j < node.label.length(); j++) {
+			char c = node.label.charAt(j);
+			int[] next = new int[m + 1];
+			next[0] = row[0] + 1;
+			int min = next[0];
+			for (int i = 1; i <= m; i++) {
+				int substitute = row[i - 1] + (q.charAt(i - 1) == c ? 0 : 1);
+				next[i] = Math.min(substitute, Math.min(row[i], next[i - 1]) + 1);
+				min = Math.min(min, next[i]);
+			}
+			row = next;
+
+			if (row[m] <= max)
+				note(node, row[m], found);
+			// every later row only gets worse, so stop here
+			if (min > max)
+				return;
+		}
+
+		for (TrieNode child : node.children)
+			fuzzy(child, q, row, max, found);
+	}
+
+	/**
+	 * Records the best names at or below node as matches at distance d,
+	 * unless they've already been found closer.
+	 */
+	private static void note(TrieNode node, int d, Map<TrieNode, Integer> found) {
+		for (TrieNode named : node.top) {
+			Integer old = found.get(named);
+			if (old == null || d < old)
+				found.put(named, d);
+		}
+	}
+
+	/**
+	 * Returns the Roads whose name is exactly the given name.
+	 */
+	public Collection<Road> getExact(String name) {
+		String key = name.toLowerCase();
 		TrieNode node = root;
-		for (char c : prefix.toCharArray()) {
-			node = node.children.get(c);
+		int i = 0;
+		while (i < key.length()) {
+			int k = node.find(key.charAt(i));
+			if (k < 0)
+				return new ArrayList<>();
+			node = node.children[k];
+			// unlike a prefix, the name has to run to the end of every edge
+			if (!key.startsWith(node.label, i))
+				return new ArrayList<>();
+			i += node.label.length();
+		}
+		return new ArrayList<>(Arrays.asList(node.data));
+	}
+
+	/**
+	 * Works out the cached completions of every node, from the leaves up: a
+	 * node's best names are the best of its own name and its children's best
+	 * names.
+	 */
+	private void rank() {
+		// put the nodes in an order where every node comes before its
+		// children, then fill them in backwards
+		List<TrieNode> order = new ArrayList<>();
+		order.add(root);
+		for (int i = 0; i < order.size(); i++)
+			for (TrieNode child : order.get(i).children)
+				order.add(child);
 
-			if (node == null)
-				return new HashSet<>();
+		List<TrieNode> candidates = new ArrayList<>();
+		for (int i = order.size() - 1; i >= 0; i--) {
+			TrieNode node = order.get(i);
+			candidates.clear();
+			if (node.data.length > 0)
+				candidates.add(node);
+			for (TrieNode child : node.children)
+				candidates.addAll(Arrays.asList(child.top));
+			candidates.sort(BEST_FIRST);
+			node.top = candidates.subList(0, Math.min(MAX_COMPLETIONS, candidates.size()))
+					.toArray(NO_CHILDREN);
 		}
+		unranked = false;
+	}
+
+	// orders named nodes by highest road class, then by total length, then
+	// alphabetically so ties come out the same every time
+	private static final Comparator<TrieNode> BEST_FIRST = new Comparator<TrieNode>() {
+		public int compare(TrieNode a, TrieNode b) {
+			if (a.roadClass != b.roadClass)
+				return b.roadClass - a.roadClass;
+			if (a.length != b.length)
+				return Double.compare(b.length, a.length);
+			return a.data[0].name.compareTo(b.data[0].name);
+		}
+	};
+
+	/**
+	 * Returns all Roads whose names start with a given prefix.
+	 */
+	public Collection<Road> get(String prefix) {
+		Metrics.Query query = Metrics.ENABLED ? Metrics.start("trie-get") : null;
+
+		// first, traverse to the end of the prefix. it may end part way along
+		// an edge, in which case everything below that edge matches.
+		TrieNode node = find(prefix.toLowerCase());
+		Collection<Road> names = new ArrayList<>();
 
 		// then, accumulate all the roads referenced by the Trie at the end of
 		// the prefix.
-		Collection<Road> names = new HashSet<>();
-		traverse(node, names);
+		int visited = node == null ? 0 : traverse(node, names);
+		if (Metrics.ENABLED)
+			query.finish(visited, 0, 0);
 		return names;
 	}
 
 	/**
-	 * Performs a traversal of the Trie rooted at the given TrieNode,
-	 * accumulating all the Roads into a provided Collection.
+	 * Returns the node at or below the end of the given prefix, or null if no
+	 * name starts with it.
+	 */
+	private TrieNode find(String prefix) {
+		TrieNode node = root;
+		int i = 0;
+		while (i < prefix.length()) {
+			int k = node.find(prefix.charAt(i));
+			if (k < 0)
+				return null;
+
+			node = node.children[k];
+			int common = commonPrefix(node.label, prefix, i);
+			if (i + common == prefix.length())
+				return node;
+			if (common < node.label.length())
+				return null;
+			i += common;
+		}
+		return node;
+	}
+
+	/**
+	 * Returns how many characters of label match str starting from offset.
 	 */
-	private static void traverse(TrieNode root, Collection<Road> elems) {
-		elems.addAll(root.data);
+	private static int commonPrefix(String label, String str, int offset) {
+		int n = Math.min(label.length(), str.length() - offset);
+		int i = 0;
+		while (i < n && label.charAt(i) == str.charAt(offset + i))
+			i++;
+		return i;
+	}
 
-		for (Character c : root.children.keySet()) {
-			traverse(root.children.get(c), elems);
+	/**
+	 * Performs a traversal of the Trie rooted at the given TrieNode,
+	 * accumulating all the Roads into a provided Collection, and returns how
+	 * many trie nodes it went through. This uses an explicit stack so long
+	 * names can't overflow the call stack.
+	 */
+	private static int traverse(TrieNode root, Collection<Road> elems) {
+		List<TrieNode> stack = new ArrayList<>();
+		stack.add(root);
+		int visited = 0;
+		while (!stack.isEmpty()) {
+			TrieNode node = stack.remove(stack.size() - 1);
+			visited++;
+			for (Road road : node.data)
+				elems.add(road);
+			for (TrieNode child : node.children)
+				stack.add(child);
 		}
+		return visited;
 	}
 
+	private static final char[] NO_KEYS = new char[0];
+	private static final TrieNode[] NO_CHILDREN = new TrieNode[0];
+	private static final Road[] NO_ROADS = new Road[0];
+
 	/**
-	 * Represents a single node in the trie. It contains a collection of the
-	 * Roads whose names are exactly the traversal down to this node.
+	 * Represents a single node in the trie. It is reached from its parent by
+	 * an edge labelled with one or more characters, and contains the Roads
+	 * whose names are exactly the traversal down to this node.
 	 */
-	private class TrieNode {
-		Map<Character, TrieNode> children = new HashMap<>();
-		Collection<Road> data = new HashSet<>();
+	private static class TrieNode {
+		String label;
+		// first character of each child's label, sorted, and the children
+		char[] keys = NO_KEYS;
+		TrieNode[] children = NO_CHILDREN;
+		Road[] data = NO_ROADS;
+
+		// for ranking the name ending here: its best road class and the
+		// total length of its roads
+		int roadClass = -1;
+		double length;
+		// the best named nodes at or below this one, best first
+		TrieNode[] top = NO_CHILDREN;
+
+		TrieNode(String label) {
+			this.label = label;
+		}
+
+		/**
+		 * Returns the index of the child whose label starts with c, or
+		 * (-(insertion point) - 1) if there isn't one.
+		 */
+		int find(char c) {
+			return Arrays.binarySearch(keys, c);
+		}
+
+		void insert(int at, TrieNode child) {
+			char[] k = new char[keys.length + 1];
+			TrieNode[] ch = new TrieNode[children.length + 1];
+			System.arraycopy(keys, 0, k, 0, at);
+			System.arraycopy(children, 0, ch, 0, at);
+			k[at] = child.label.charAt(0);
+			ch[at] = child;
+			System.arraycopy(keys, at, k, at + 1, keys.length - at);
+			System.arraycopy(children, at, ch, at + 1, children.length - at);
+			keys = k;
+			children = ch;
+		}
 	}
-}
\ No newline at end of file
+}
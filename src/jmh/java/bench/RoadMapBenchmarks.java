@@ -0,0 +1,107 @@
+package bench;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH versions of the benchmarks in Benchmark: loading, A* between seeded
+ * random pairs (with the empty traffic overlay, and by length alone as the
+ * baseline), the articulation points, trie prefix lookups, the nearest
+ * intersection to a click, and drawing the map off screen. Each benchmark
+ * method is one operation, so the scores are time per load, per route, per
+ * lookup and so on.
+ *
+ * The work is set up by Benchmark.operations, so this and the quick runner
+ * time exactly the same thing. The road map classes are in the default
+ * package, which code in a package can't name, so that one method is called
+ * by reflection and everything after is through IntSupplier.
+ *
+ * By default the data is a network of the given number of nodes made by
+ * NetworkGenerator; -p data=directory uses real data instead.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RoadMapBenchmarks {
+	@Param("")
+	public String data;
+
+	@Param("50000")
+	public int nodes;
+
+	@Param("42")
+	public long seed;
+
+	private IntSupplier load, astar, astarLengths, articulation, trieGet, nearestNode, draw;
+
+	@Setup
+	@SuppressWarnings("unchecked")
+	public void setup() throws Exception {
+		Class<?> harness = Class.forName("Benchmark");
+		File dir = data.isEmpty()
+				? (File) harness.getMethod("generated", int.class, long.class).invoke(null, nodes, seed)
+				: new File(data);
+		Map<String, IntSupplier> operations = (Map<String, IntSupplier>) harness
+				.getMethod("operations", File.class, long.class).invoke(null, dir, seed);
+		load = operations.get("load");
+		astar = operations.get("astar");
+		astarLengths = operations.get("astar-lengths");
+		articulation = operations.get("articulation");
+		trieGet = operations.get("trie-get");
+		nearestNode = operations.get("nearest-node");
+		draw = operations.get("draw");
+	}
+
+	@Benchmark
+	public int load() {
+		return load.getAsInt();
+	}
+
+	@Benchmark
+	public int astar() {
+		return astar.getAsInt();
+	}
+
+	@Benchmark
+	public int astarLengths() {
+		return astarLengths.getAsInt();
+	}
+
+	@Benchmark
+	public int articulation() {
+		return articulation.getAsInt();
+	}
+
+	@Benchmark
+	public int trieGet() {
+		return trieGet.getAsInt();
+	}
+
+	@Benchmark
+	public int nearestNode() {
+		return nearestNode.getAsInt();
+	}
+
+	@Benchmark
+	public int draw() {
+		return draw.getAsInt();
+	}
+}
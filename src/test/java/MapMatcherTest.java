@@ -0,0 +1,98 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MapMatcherTest {
+	// about a kilometre in degrees, near Auckland
+	private static final double LAT_KM = 1 / 111.0, LON_KM = 1 / 88.649;
+	private static final double LAT = -36.85, LON = 174.76;
+
+	@TempDir
+	File dir;
+
+	/**
+	 * Road 1 is on its own, 5km south of road 2. Road 3 runs alongside road
+	 * 2, 30m north, but doesn't join it. After the jump from road 1 to road 2,
+	 * which can't be driven, a fix nearer road 3 should still be matched to
+	 * road 2, the road the fixes either side of it are on.
+	 */
+	@Test
+	public void picksUpAgainAfterAnUnroutableGap() throws IOException {
+		Graph graph = network();
+		MapMatcher matcher = new MapMatcher(graph, new SegmentIndex(graph.segments));
+
+		List<Location> fixes = new ArrayList<>();
+		for (double x : new double[] { 0.2, 0.5, 0.8 })
+			fixes.add(along(graph, 1, 2, x));
+		fixes.add(along(graph, 3, 4, 0.1));
+		fixes.add(along(graph, 3, 4, 0.3));
+		// three quarters of the way from road 2 across to road 3
+		Location on2 = graph.node(4).location, on3 = along(graph, 6, 7, 0.5);
+		fixes.add(new Location(on2.x + 0.75 * (on3.x - on2.x), on2.y + 0.75 * (on3.y - on2.y)));
+		fixes.add(along(graph, 4, 5, 0.6));
+		fixes.add(along(graph, 4, 5, 0.9));
+
+		List<MapMatcher.Match> matches = new ArrayList<>();
+		for (Location fix : fixes)
+			matches.addAll(matcher.add(fix));
+		matches.addAll(matcher.finish());
+
+		assertEquals(fixes.size(), matches.size());
+		int[] roads = { 1, 1, 1, 2, 2, 2, 2, 2 };
+		for (int i = 0; i < matches.size(); i++) {
+			MapMatcher.Match m = matches.get(i);
+			assertEquals(i, m.seq);
+			assertNotNull(m.match, "fix " + i + " unmatched");
+			assertEquals(roads[i], m.match.segment.road.roadID, "road of fix " + i);
+		}
+	}
+
+	private static Location along(Graph graph, int from, int to, double t) {
+		Location a = graph.node(from).location, b = graph.node(to).location;
+		return new Location(a.x + t * (b.x - a.x), a.y + t * (b.y - a.y));
+	}
+
+	private Graph network() throws IOException {
+		// node: kilometres east and north
+		double[][] nodes = { { 0, 0 }, { 1, 0 }, { 0, 5 }, { 0.5, 5 }, { 1, 5 }, { 0.3, 5.03 }, { 0.7, 5.03 } };
+		int[][] segments = { { 1, 1, 2 }, { 2, 3, 4 }, { 2, 4, 5 }, { 3, 6, 7 } };
+
+		File nodesFile = new File(dir, GUI.NODES_FILENAME);
+		try (PrintWriter out = new PrintWriter(nodesFile)) {
+			for (int i = 0; i < nodes.length; i++)
+				out.printf("%d\t%.7f\t%.7f%n", i + 1, lat(nodes[i]), lon(nodes[i]));
+		}
+		File roadsFile = new File(dir, GUI.ROADS_FILENAME);
+		try (PrintWriter out = new PrintWriter(roadsFile)) {
+			out.println("roadid\ttype\tlabel\tcity\toneway\tspeed\troadclass\tnotforcar\tnotforpede\tnotforbicy");
+			for (int r = 1; r <= 3; r++)
+				out.printf("%d\t1\troad %d\tcity\t0\t4\t2\t0\t0\t0%n", r, r);
+		}
+		File segsFile = new File(dir, GUI.SEGS_FILENAME);
+		try (PrintWriter out = new PrintWriter(segsFile)) {
+			out.println("roadid\tlength\tnodeID1\tnodeID2\tcoords");
+			for (int[] s : segments) {
+				double[] a = nodes[s[1] - 1], b = nodes[s[2] - 1];
+				out.printf("%d\t%.4f\t%d\t%d\t%.7f\t%.7f\t%.7f\t%.7f%n", s[0], Math.hypot(b[0] - a[0], b[1] - a[1]),
+						s[1], s[2], lat(a), lon(a), lat(b), lon(b));
+			}
+		}
+		return new Graph(nodesFile, roadsFile, segsFile, null);
+	}
+
+	private static double lat(double[] km) {
+		return LAT + km[1] * LAT_KM;
+	}
+
+	private static double lon(double[] km) {
+		return LON + km[0] * LON_KM;
+	}
+}